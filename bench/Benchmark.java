@@ -0,0 +1,476 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for the training hot paths.
+ * Each benchmark is run for a few warm-up iterations, to give the JIT time
+ * to compile it, then for a number of timed iterations of a fixed length.
+ * The score is the mean time per operation, with the standard deviation
+ * over the timed iterations as its error. Results are printed as they come
+ * and can also be written to a tab-separated file, for comparing between
+ * releases.
+ * <p>
+ * Run with "ant bench", or with the project and benchmark classes on the
+ * class path: java Benchmark [-o results.tsv] [-f regex] [-w warm-ups]
+ * [-i iterations] [-t milliseconds per iteration]
+ * @author Daniel
+ */
+public class Benchmark
+{
+    private static final String[] DATA_SETS = {
+        "data-iris.txt", "wine.data", "winequality-red.txt", "winequality-white.txt"
+    };
+    private static final int[] HIDDEN_UNITS = {5, 10, 50};
+    private static final int[] SWARM_SIZES = {30, 1000, 30000};
+
+    // results are added here so the JIT cannot drop the work
+    private static volatile double sink;
+
+    private int warmups = 3;
+    private int iterations = 5;
+    private long iterationTime = 200000000L; // 200ms
+    private Pattern filter = null;
+    private PrintWriter out = null;
+
+    /**
+     * One benchmark, with one set of parameters.
+     */
+    private abstract static class Case
+    {
+        private String name;
+        private String parameters;
+
+        Case(String name, String parameters)
+        {
+            this.name = name;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Prepares for running, outside the timed part.
+         * @throws IOException
+         */
+        void setUp() throws IOException
+        {
+        }
+
+        /**
+         * Performs one operation.
+         */
+        abstract void run();
+    }
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        Benchmark benchmark = new Benchmark();
+        String output = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-o") && i + 1 < args.length)
+                output = args[++i];
+            else if (args[i].equals("-f") && i + 1 < args.length)
+                benchmark.filter = Pattern.compile(args[++i]);
+            else if (args[i].equals("-w") && i + 1 < args.length)
+                benchmark.warmups = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-i") && i + 1 < args.length)
+                benchmark.iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-t") && i + 1 < args.length)
+                benchmark.iterationTime = Long.parseLong(args[++i])*1000000L;
+            else
+            {
+                System.err.println("Usage: java Benchmark [-o results.tsv] [-f regex] [-w warm-ups] [-i iterations] [-t milliseconds]");
+                System.exit(1);
+            }
+        }
+
+        if (output != null)
+        {
+            benchmark.out = new PrintWriter(new FileWriter(output));
+            benchmark.out.printf("# java.version=%s\tos.arch=%s\tprocessors=%d\n",
+                    System.getProperty("java.version"), System.getProperty("os.arch"),
+                    Runtime.getRuntime().availableProcessors());
+            benchmark.out.print("benchmark\tparameters\tns/op\terror\titerations\n");
+        }
+        try
+        {
+            benchmark.runAll();
+        }
+        finally
+        {
+            if (benchmark.out != null)
+                benchmark.out.close();
+        }
+    }
+
+    private void runAll()
+            throws IOException
+    {
+        for (Case c : createCases())
+        {
+            if (filter == null || filter.matcher(c.name + " " + c.parameters).find())
+                measure(c);
+        }
+    }
+
+    private void measure(Case c)
+            throws IOException
+    {
+        c.setUp();
+
+        // find how many operations take long enough to time
+        int batch = 1;
+        while (true)
+        {
+            long start = System.nanoTime();
+            for (int k = 0; k < batch; k++)
+            {
+                c.run();
+            }
+            if (System.nanoTime() - start >= 10000 || batch >= 1 << 24)
+                break;
+            batch *= 2;
+        }
+
+        for (int i = 0; i < warmups; i++)
+        {
+            time(c, batch);
+        }
+        double[] scores = new double[iterations];
+        double sum = 0;
+        for (int i = 0; i < iterations; i++)
+        {
+            scores[i] = time(c, batch);
+            sum += scores[i];
+        }
+        double mean = sum/iterations;
+        double variance = 0;
+        for (int i = 0; i < iterations; i++)
+        {
+            variance += (scores[i] - mean)*(scores[i] - mean);
+        }
+        double error = iterations > 1 ? Math.sqrt(variance/(iterations - 1)) : 0;
+
+        System.out.printf("%-28s %-44s %14.1f ns/op +- %.1f\n", c.name, c.parameters, mean, error);
+        if (out != null)
+        {
+            out.printf("%s\t%s\t%.1f\t%.1f\t%d\n", c.name, c.parameters, mean, error, iterations);
+            out.flush();
+        }
+    }
+
+    // runs batches of operations for one iteration, returning ns per operation
+    private double time(Case c, int batch)
+    {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            for (int k = 0; k < batch; k++)
+            {
+                c.run();
+            }
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+        }
+        while (elapsed < iterationTime);
+        return (double)elapsed/operations;
+    }
+
+    private static String name(String file)
+    {
+        return file.substring(0, file.indexOf('.'));
+    }
+
+    // deterministic weights, the same for every run
+    private static double[] weights(int count)
+    {
+        double[] weights = new double[count];
+        for (int i = 0; i < count; i++)
+        {
+            weights[i] = Math.sin(i);
+        }
+        return weights;
+    }
+
+    private List<Case> createCases()
+    {
+        List<Case> cases = new ArrayList<Case>();
+
+        Function[] functions = {
+            new Function.Sigmoid(), new Function.FastSigmoid(),
+            new Function.Tanh(), new Function.FastTanh()
+        };
+        for (final Function function : functions)
+        {
+            cases.add(new Case("Function.apply", "function=" + function.getClass().getSimpleName() + " length=64")
+            {
+                private double[] values = new double[64];
+                private double[] buf = new double[64];
+
+                @Override
+                void setUp()
+                {
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        values[i] = 8*Math.sin(i);
+                    }
+                }
+
+                @Override
+                void run()
+                {
+                    System.arraycopy(values, 0, buf, 0, buf.length);
+                    function.apply(buf, 0, buf.length);
+                    sink += buf[0];
+                }
+            });
+        }
+
+        for (final String file : DATA_SETS)
+        {
+            for (final int hidden : HIDDEN_UNITS)
+            {
+                String parameters = "data=" + name(file) + " hidden=" + hidden;
+
+                cases.add(new Case("NeuralNetwork.run(double[])", parameters)
+                {
+                    private NeuralNetwork network;
+                    private double[][] inputs;
+                    private int p = 0;
+
+                    @Override
+                    void setUp() throws IOException
+                    {
+                        DataSet data = DataSet.load(new File(file));
+                        network = new NeuralNetwork(data.getNumInputs(), hidden, data.getNumOutputs(), new Function.Sigmoid());
+                        network.setWeights(weights(network.getNumWeights()));
+                        inputs = new double[data.getSize()][];
+                        for (int i = 0; i < inputs.length; i++)
+                        {
+                            inputs[i] = data.getPattern(i).getInputs();
+                        }
+                    }
+
+                    @Override
+                    void run()
+                    {
+                        sink += network.run(inputs[p])[0];
+                        p = (p + 1) % inputs.length;
+                    }
+                });
+
+                for (final boolean single : new boolean[]{false, true})
+                {
+                    cases.add(new Case("NeuralNetwork.run(DataSet)", parameters + (single ? " precision=single" : " precision=double"))
+                    {
+                        private NeuralNetwork network;
+                        private DataSet data;
+
+                        @Override
+                        void setUp() throws IOException
+                        {
+                            data = DataSet.convert(single, DataSet.load(new File(file)))[0];
+                            network = new NeuralNetwork(data.getNumInputs(), hidden, data.getNumOutputs(), new Function.Sigmoid());
+                            network.setSinglePrecision(single);
+                            network.setWeights(weights(network.getNumWeights()));
+                        }
+
+                        @Override
+                        void run()
+                        {
+                            sink += network.run(data).getMeanSquaredError();
+                        }
+                    });
+                }
+
+                // a swarm's worth of run(double[], DataSet) in one pass
+                cases.add(new Case("NeuralNetwork.run(double[][], DataSet)", parameters + " particles=30")
+                {
+                    private NeuralNetwork network;
+                    private DataSet data;
+                    private double[][] swarm;
+
+                    @Override
+                    void setUp() throws IOException
+                    {
+                        data = DataSet.load(new File(file));
+                        network = new NeuralNetwork(data.getNumInputs(), hidden, data.getNumOutputs(), new Function.Sigmoid());
+                        swarm = new double[30][];
+                        for (int p = 0; p < swarm.length; p++)
+                        {
+                            swarm[p] = weights(network.getNumWeights());
+                        }
+                    }
+
+                    @Override
+                    void run()
+                    {
+                        sink += network.run(swarm, data)[0].getMeanSquaredError();
+                    }
+                });
+
+                cases.add(new Case("NeuralNetwork.setWeights", parameters)
+                {
+                    private NeuralNetwork network;
+                    private double[] weights;
+
+                    @Override
+                    void setUp() throws IOException
+                    {
+                        DataSet data = DataSet.load(new File(file));
+                        network = new NeuralNetwork(data.getNumInputs(), hidden, data.getNumOutputs(), new Function.Sigmoid());
+                        weights = weights(network.getNumWeights());
+                    }
+
+                    @Override
+                    void run()
+                    {
+                        network.setWeights(weights);
+                    }
+                });
+
+                cases.add(new Case("Particle.update", parameters)
+                {
+                    private Particle particle;
+                    private double[] best;
+
+                    @Override
+                    void setUp() throws IOException
+                    {
+                        DataSet data = DataSet.load(new File(file));
+                        int dimensions = new NeuralNetwork(data.getNumInputs(), hidden, data.getNumOutputs(), new Function.Sigmoid()).getNumWeights();
+                        particle = new Particle(dimensions, -1, 1, new Rng(1));
+                        best = weights(dimensions);
+                    }
+
+                    @Override
+                    void run()
+                    {
+                        particle.update(0.72, 1.4, 1.4, 1, best);
+                    }
+                });
+            }
+        }
+
+        for (final int size : SWARM_SIZES)
+        {
+            String parameters = "particles=" + size;
+            Topology[] topologies = {new Topology.Star(), new Topology.Ring(2)};
+            for (final Topology topology : topologies)
+            {
+                cases.add(new Case("Topology." + topology.getClass().getSimpleName() + ".update", parameters)
+                {
+                    @Override
+                    void setUp()
+                    {
+                        Rng rng = new Rng(1);
+                        Particle[] particles = new Particle[size];
+                        for (int i = 0; i < size; i++)
+                        {
+                            particles[i] = new Particle(1, -1, 1, rng.split());
+                            particles[i].updateFitness(rng.nextDouble());
+                        }
+                        topology.setPopulation(particles);
+                    }
+
+                    @Override
+                    void run()
+                    {
+                        // as the PSO does after every evaluation
+                        for (int i = 0; i < size; i++)
+                        {
+                            topology.report(i);
+                        }
+                        topology.update();
+                        sink += topology.getBest(0)[0];
+                    }
+                });
+            }
+        }
+
+        for (final String file : DATA_SETS)
+        {
+            String parameters = "data=" + name(file);
+
+            cases.add(new Case("DataSet(File)", parameters)
+            {
+                @Override
+                void run()
+                {
+                    try
+                    {
+                        sink += new DataSet(new File(file)).getSize();
+                    }
+                    catch (IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+
+            cases.add(new Case("DataSet.load", parameters)
+            {
+                @Override
+                void setUp() throws IOException
+                {
+                    // make sure the cache exists
+                    DataSet.load(new File(file));
+                }
+
+                @Override
+                void run()
+                {
+                    try
+                    {
+                        sink += DataSet.load(new File(file)).getSize();
+                    }
+                    catch (IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        for (final String file : DATA_SETS)
+        {
+            for (final int hidden : new int[]{5, 10})
+            {
+                for (final int particles : new int[]{10, 30})
+                {
+                    String parameters = "data=" + name(file) + " hidden=" + hidden + " particles=" + particles;
+                    cases.add(new Case("PSONN iteration", parameters)
+                    {
+                        private PSONN pso;
+                        private int i = 0;
+
+                        @Override
+                        void setUp() throws IOException
+                        {
+                            DataSet data = DataSet.load(new File(file));
+                            pso = new PSONN(data, Integer.MAX_VALUE, hidden, new Function.Sigmoid(),
+                                    new Topology.Star(), 0.72, 1.4, 1.4, 1, particles, -1, 1);
+                            pso.setSeed(1);
+                            pso.start();
+                        }
+
+                        @Override
+                        void run()
+                        {
+                            pso.iterate(++i);
+                        }
+                    });
+                }
+            }
+        }
+
+        return cases;
+    }
+}
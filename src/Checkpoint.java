@@ -0,0 +1,211 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A saved state of a Particle Swarm Optimisation, from which it can carry
+ * on after the process is stopped.
+ * The file holds the iteration and evaluation counts, the state of each
+ * particle's random number generator, then each particle's fitness,
+ * personal best fitness, position, velocity and personal best position, all
+ * little-endian. Neighbourhood bests are not saved, as they
+ * follow from the particles. A checkpoint is written to a temporary file
+ * and then renamed over the last one, so a crash never leaves a half
+ * written checkpoint behind.
+ * @author Daniel
+ */
+public class Checkpoint
+{
+    private static final int MAGIC = 0x50534f43; // "PSOC"
+    private static final int VERSION = 2;
+    private static final int HEADER = 32;
+
+    private File file;
+    private int iteration;
+    private long evaluations;
+
+    // reused between writes
+    private ByteBuffer buffer = null;
+
+    /**
+     * @param file Where the checkpoint is kept.
+     */
+    public Checkpoint(File file)
+    {
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return The last iteration finished before the checkpoint was taken.
+     */
+    public int getIteration()
+    {
+        return iteration;
+    }
+
+    /**
+     * @return The number of fitness evaluations before the checkpoint was
+     * taken.
+     */
+    public long getEvaluations()
+    {
+        return evaluations;
+    }
+
+    /**
+     * Saves the state of a swarm.
+     * @param iteration The last iteration finished.
+     * @param evaluations The number of fitness evaluations so far.
+     * @param particles The swarm.
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    public void write(int iteration, long evaluations, Particle[] particles)
+            throws IOException
+    {
+        int length = getLength(particles);
+        if (buffer == null || buffer.capacity() != length)
+        {
+            buffer = ByteBuffer.allocateDirect(length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(particles.length);
+        buffer.putInt(particles[0].getValues().length);
+        buffer.putInt(iteration);
+        buffer.putInt(0);
+        buffer.putLong(evaluations);
+        LongBuffer longs = buffer.asLongBuffer();
+        for (Particle particle : particles)
+        {
+            longs.put(particle.getRng().getState());
+        }
+        buffer.position(HEADER + 8*particles.length);
+        DoubleBuffer doubles = buffer.asDoubleBuffer();
+        for (Particle particle : particles)
+        {
+            doubles.put(particle.getFitness());
+            doubles.put(particle.getBestFitness());
+            doubles.put(particle.getValues());
+            doubles.put(particle.getVelocity());
+            doubles.put(particle.getBestValues());
+        }
+        buffer.rewind();
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try
+        {
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        // File.renameTo will not replace an existing file on some platforms
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+        {
+            temp.delete();
+            throw new IOException(file.getName() + " (Could not write checkpoint)");
+        }
+
+        this.iteration = iteration;
+        this.evaluations = evaluations;
+    }
+
+    /**
+     * Restores the state of a swarm.
+     * @param particles The swarm, which must have the same size and
+     * dimensions as the saved one.
+     * @throws IOException If the checkpoint cannot be read, or does not
+     * match the swarm.
+     */
+    public void read(Particle[] particles)
+            throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file.getName() + " (Not a checkpoint)");
+
+            ByteBuffer in = ByteBuffer.allocate((int)channel.size());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            while (in.hasRemaining())
+            {
+                if (channel.read(in) < 0)
+                    throw new IOException(file.getName() + " (Truncated checkpoint)");
+            }
+            in.flip();
+
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException(file.getName() + " (Not a checkpoint)");
+            int dimensions = particles[0].getValues().length;
+            if (in.getInt() != particles.length || in.getInt() != dimensions)
+                throw new IOException(file.getName() + " (Checkpoint is for a different swarm)");
+            if (in.limit() != getLength(particles))
+                throw new IOException(file.getName() + " (Corrupt checkpoint)");
+            int savedIteration = in.getInt();
+            in.getInt();
+            long savedEvaluations = in.getLong();
+
+            LongBuffer longs = in.asLongBuffer();
+            for (Particle particle : particles)
+            {
+                particle.getRng().setState(longs.get());
+            }
+            in.position(HEADER + 8*particles.length);
+            DoubleBuffer doubles = in.asDoubleBuffer();
+            for (Particle particle : particles)
+            {
+                double fitness = doubles.get();
+                double bestFitness = doubles.get();
+                doubles.get(particle.getValues());
+                doubles.get(particle.getVelocity());
+                doubles.get(particle.getBestValues());
+                particle.setFitness(fitness);
+                particle.setBestFitness(bestFitness);
+            }
+
+            iteration = savedIteration;
+            evaluations = savedEvaluations;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // the size of a checkpoint of the swarm, which must fit in a buffer
+    private int getLength(Particle[] particles)
+            throws IOException
+    {
+        long dimensions = particles[0].getValues().length;
+        long length = HEADER + particles.length*(3 + 3*dimensions)*8;
+        if (length > Integer.MAX_VALUE)
+            throw new IOException(String.format("%s (A swarm of %d particles in %d dimensions is too large to checkpoint)",
+                    file.getName(), particles.length, dimensions));
+        return (int)length;
+    }
+}
@@ -0,0 +1,430 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A data set that stays on disk and is read a block of patterns at a time,
+ * for data sets too big to fit in the heap.
+ * The patterns are read from the binary cache of a DataSet file (see
+ * DataSetCache), which is created from the text if it is missing or out of
+ * date. Each pass over the set reads the blocks in order on a background
+ * thread, a few blocks ahead of whoever is using them, so memory use is
+ * bounded by the block size whatever the size of the file. The thread and
+ * its buffers are kept for the next pass, as a set is usually read many
+ * times.
+ * @author Daniel
+ */
+public class ChunkedDataSet
+{
+    // number of blocks read ahead of the one in use
+    private static final int PREFETCH = 2;
+    // most readers kept waiting for another pass
+    private static final int MAX_IDLE = 16;
+
+    private File cache;
+
+    private int numInputs;
+    private int numOutputs;
+    private String[] outputNames;
+
+    private long inputsStart;
+    private long outputsStart;
+
+    // the patterns in this set are rows offset..offset+size of the cache
+    private int offset;
+    private int size;
+
+    private int blockSize;
+
+    // readers waiting for another pass, shared with subsets
+    private BlockingQueue<Reader> idle;
+
+    /**
+     * Opens a DataSet file for reading a block at a time.
+     * @param file The DataSet text file.
+     * @param blockSize Number of patterns per block.
+     * @throws IOException If the file or its cache cannot be read.
+     */
+    public ChunkedDataSet(File file, int blockSize)
+            throws IOException
+    {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be at least 1.");
+
+        cache = DataSetCache.getCacheFile(file);
+        DataSetCache.Header header = readHeader(file);
+        if (header == null)
+        {
+            DataSetCache.create(file);
+            header = readHeader(file);
+            if (header == null)
+                throw new IOException(cache.getName() + " (Could not read DataSet cache)");
+        }
+
+        numInputs = header.numInputs;
+        numOutputs = header.numOutputs;
+        outputNames = header.outputNames;
+        inputsStart = header.inputsStart;
+        outputsStart = header.outputsStart;
+        offset = 0;
+        size = header.size;
+        this.blockSize = blockSize;
+        idle = new ArrayBlockingQueue<Reader>(MAX_IDLE);
+    }
+
+    private DataSetCache.Header readHeader(File file)
+            throws IOException
+    {
+        if (!cache.isFile())
+            return null;
+        RandomAccessFile raf = new RandomAccessFile(cache, "r");
+        try
+        {
+            return DataSetCache.Header.read(raf.getChannel(), file);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // for internal use only
+    private ChunkedDataSet(ChunkedDataSet parent, int offset, int size)
+    {
+        this.cache = parent.cache;
+        this.numInputs = parent.numInputs;
+        this.numOutputs = parent.numOutputs;
+        this.outputNames = parent.outputNames;
+        this.inputsStart = parent.inputsStart;
+        this.outputsStart = parent.outputsStart;
+        this.blockSize = parent.blockSize;
+        this.idle = parent.idle;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    public int getNumInputs()
+    {
+        return numInputs;
+    }
+
+    public int getNumOutputs()
+    {
+        return numOutputs;
+    }
+
+    public String[] getOutputNames()
+    {
+        return outputNames;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public ChunkedDataSet getSubset(int start)
+    {
+        return getSubset(start, size);
+    }
+
+    /**
+     * Gets a range of this set's patterns. Nothing is read.
+     * @param start First pattern, inclusive.
+     * @param end Last pattern, exclusive.
+     * @return The subset.
+     */
+    public ChunkedDataSet getSubset(int start, int end)
+    {
+        if (start < 0 || end > size || start > end)
+            throw new IndexOutOfBoundsException(String.format("Subset [%d,%d) of %d patterns", start, end, size));
+
+        return new ChunkedDataSet(this, offset + start, end - start);
+    }
+
+    /**
+     * Starts a pass over the set. Each pass has its own read-ahead thread,
+     * so several threads can each make their own pass at the same time.
+     * Closing a pass keeps its thread, file handle and buffers for the next
+     * pass over this set or any subset of the same file.
+     * @return A reader, which must be closed.
+     * @throws IOException
+     */
+    public Reader open()
+            throws IOException
+    {
+        Reader reader = idle.poll();
+        if (reader == null)
+            reader = new Reader(this);
+        reader.start(this);
+        return reader;
+    }
+
+    /**
+     * Stops the read-ahead threads kept for later passes over this file and
+     * closes their file handles. The set can still be read afterwards.
+     */
+    public void close()
+    {
+        Reader reader;
+        while ((reader = idle.poll()) != null)
+        {
+            reader.retire();
+        }
+    }
+
+    /**
+     * One pass over a ChunkedDataSet, handing out its blocks in order.
+     */
+    public static class Reader
+    {
+        private final File cache;
+        private final BlockingQueue<Reader> idle;
+        private final int numInputs;
+        private final int numOutputs;
+        private final String[] outputNames;
+        private final long inputsStart;
+        private final long outputsStart;
+        private final int blockSize;
+
+        // marks the end of a pass in the queue
+        private final Block END;
+
+        private final RandomAccessFile raf;
+        private final ByteBuffer buffer;
+        private final BlockingQueue<ChunkedDataSet> passes = new ArrayBlockingQueue<ChunkedDataSet>(1);
+        private final BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(PREFETCH + 3);
+        private final BlockingQueue<Block> empty = new ArrayBlockingQueue<Block>(PREFETCH + 2);
+        private Block current = null;
+        private boolean open = false;
+        private volatile IOException error = null;
+        private volatile boolean stopping = false;
+        private final Thread thread;
+
+        private Reader(ChunkedDataSet set)
+                throws IOException
+        {
+            cache = set.cache;
+            idle = set.idle;
+            numInputs = set.numInputs;
+            numOutputs = set.numOutputs;
+            outputNames = set.outputNames;
+            inputsStart = set.inputsStart;
+            outputsStart = set.outputsStart;
+            blockSize = set.blockSize;
+
+            END = new Block(0, 0);
+            for (int i = 0; i < PREFETCH + 2; i++)
+            {
+                empty.add(new Block(blockSize, numInputs));
+            }
+            buffer = ByteBuffer.allocateDirect(blockSize*Math.max(8*numInputs, 4));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            raf = new RandomAccessFile(cache, "r");
+
+            thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    readPasses();
+                }
+            }, "ChunkedDataSet reader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Gets the next block of patterns. The block is only valid until the
+         * next call, as its storage is then reused.
+         * @return The block, or null once every pattern has been read.
+         * @throws IOException If reading failed.
+         */
+        public DataSet next()
+                throws IOException
+        {
+            if (!open)
+                throw new IllegalStateException("The pass is closed.");
+            if (current != null)
+            {
+                if (current == END)
+                    return null;
+                empty.add(current);
+                current = null;
+            }
+
+            try
+            {
+                current = full.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(cache.getName() + " (Interrupted while reading)");
+            }
+
+            if (current == END)
+            {
+                if (error != null)
+                    throw error;
+                return null;
+            }
+            return current.dataSet;
+        }
+
+        /**
+         * Ends the pass. The reader is kept for another pass unless reading
+         * failed or enough readers are already waiting.
+         */
+        public void close()
+        {
+            if (!open)
+                return;
+            open = false;
+
+            // let the read-ahead thread finish the pass early, and take back
+            // every block
+            stopping = true;
+            boolean interrupted = false;
+            while (current != END)
+            {
+                if (current != null)
+                    empty.add(current);
+                try
+                {
+                    current = full.take();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                    current = null;
+                }
+            }
+            current = null;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (error != null || !idle.offer(this))
+                retire();
+        }
+
+        private void start(ChunkedDataSet set)
+        {
+            open = true;
+            stopping = false;
+            error = null;
+            passes.add(set);
+        }
+
+        // stops the read-ahead thread, which closes the file
+        private void retire()
+        {
+            thread.interrupt();
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void readPasses()
+        {
+            try
+            {
+                while (true)
+                {
+                    readAll(passes.take());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // retired
+            }
+            finally
+            {
+                try
+                {
+                    raf.close();
+                }
+                catch (IOException e)
+                {
+                    // nothing more to read anyway
+                }
+            }
+        }
+
+        private void readAll(ChunkedDataSet set)
+                throws InterruptedException
+        {
+            FileChannel channel = raf.getChannel();
+            try
+            {
+                for (int start = 0; start < set.size && !stopping; start += blockSize)
+                {
+                    Block block = empty.take();
+                    int count = Math.min(blockSize, set.size - start);
+                    long row = set.offset + start;
+
+                    read(channel, inputsStart + 8*row*numInputs, 8*count*numInputs);
+                    buffer.asDoubleBuffer().get(block.inputs, 0, count*numInputs);
+                    read(channel, outputsStart + 4*row, 4*count);
+                    buffer.asIntBuffer().get(block.outputs, 0, count);
+
+                    block.dataSet = new DataSet(numInputs, numOutputs, outputNames,
+                            block.inputs, block.outputs, count);
+                    full.put(block);
+                }
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+            finally
+            {
+                full.offer(END);
+            }
+        }
+
+        // reads length bytes at position into the start of buffer
+        private void read(FileChannel channel, long position, int length)
+                throws IOException
+        {
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException(cache.getName() + " (Truncated DataSet cache)");
+            }
+            buffer.flip();
+        }
+    }
+
+    // storage for one block, reused from pass to pass
+    private static class Block
+    {
+        private double[] inputs;
+        private int[] outputs;
+        private DataSet dataSet;
+
+        private Block(int capacity, int numInputs)
+        {
+            inputs = new double[capacity*numInputs];
+            outputs = new int[capacity];
+        }
+    }
+}
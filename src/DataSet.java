@@ -1,11 +1,16 @@
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
- *
+ * A set of classification patterns.
+ * The features of every pattern are kept in one row-major array, with the
+ * class of each pattern in a parallel array. Subsets share that storage and
+ * only record which rows they contain. The features can be held in single
+ * precision instead, taking half the memory.
  * @author Daniel
  */
 public class DataSet
@@ -15,42 +20,61 @@ public class DataSet
     
     private String[] outputNames;
     
-    private Pattern[] patterns;
+    // row-major features, numInputs values per row, and the class of each
+    // row. Exactly one of inputs and floatInputs is set.
+    private double[] inputs;
+    private float[] floatInputs;
+    private int[] outputs;
+    
+    // the rows in this set are rows[offset..offset+size), or simply
+    // offset..offset+size if rows is null.
+    private int[] rows;
+    private int offset;
+    private int size;
     
     public class Pattern
     {
-        private double[] inputs;
-        private int output;
+        private int row;
 
-        public Pattern(double[] inputs, int output)
+        private Pattern(int row)
         {
-            this.inputs = inputs;
-            this.output = output;
+            this.row = row;
         }
         
         public double getInput(int i)
         {
-            return inputs[i];
+            return inputs != null ? inputs[row*numInputs + i] : floatInputs[row*numInputs + i];
         }
 
+        /**
+         * @return A copy of this pattern's input values.
+         */
         public double[] getInputs()
         {
-            return inputs;
+            if (inputs != null)
+                return Arrays.copyOfRange(inputs, row*numInputs, (row+1)*numInputs);
+            
+            double[] result = new double[numInputs];
+            for (int i = 0; i < numInputs; i++)
+            {
+                result[i] = floatInputs[row*numInputs + i];
+            }
+            return result;
         }
         
         public int getOutputIndex()
         {
-            return output;
+            return outputs[row];
         }
         
         public double[] getOutput()
         {
-            double[] outputs = new double[numOutputs];
+            double[] result = new double[numOutputs];
             for (int i = 0; i < numOutputs; i++)
             {
-                outputs[i] = i == output ? 1 : 0;
+                result[i] = i == outputs[row] ? 1 : 0;
             }
-            return outputs;
+            return result;
         }
     }
 
@@ -64,97 +88,278 @@ public class DataSet
         return numOutputs;
     }
     
+    /**
+     * @return The class names, indexed by output.
+     */
+    public String[] getOutputNames()
+    {
+        return outputNames;
+    }
+    
     public Pattern getPattern(int i)
     {
-        return patterns[i];
+        return new Pattern(getRow(i));
+    }
+    
+    /**
+     * Gets the row of the backing arrays holding the i'th pattern of this set.
+     * Its inputs start at getRow(i)*getNumInputs() in getInputData().
+     * @param i
+     * @return The row index.
+     */
+    public int getRow(int i)
+    {
+        return rows == null ? offset + i : rows[offset + i];
+    }
+    
+    /**
+     * @return The row-major input values backing this set and the sets it
+     * shares storage with, or null if they are held in single precision.
+     * Must not be modified.
+     */
+    public double[] getInputData()
+    {
+        return inputs;
+    }
+    
+    /**
+     * @return The row-major input values backing this set and the sets it
+     * shares storage with, or null if they are held in double precision.
+     * Must not be modified.
+     */
+    public float[] getFloatInputData()
+    {
+        return floatInputs;
+    }
+    
+    public boolean isSinglePrecision()
+    {
+        return floatInputs != null;
+    }
+    
+    /**
+     * Converts data sets to hold their features in single or double
+     * precision. The features of each distinct backing array are converted
+     * once, so sets that shared storage still share it afterwards. Sets
+     * already in the wanted precision are returned as they are. Going back to
+     * double precision does not restore the digits lost in single.
+     * @param singlePrecision Whether to convert to single precision.
+     * @param dataSets The sets to convert.
+     * @return Views of the converted storage, in the same order.
+     */
+    public static DataSet[] convert(boolean singlePrecision, DataSet... dataSets)
+    {
+        Map<Object, Object> converted = new IdentityHashMap<Object, Object>();
+        DataSet[] result = new DataSet[dataSets.length];
+        for (int s = 0; s < dataSets.length; s++)
+        {
+            DataSet set = dataSets[s];
+            if (set.isSinglePrecision() == singlePrecision)
+            {
+                result[s] = set;
+                continue;
+            }
+            
+            Object storage = set.inputs != null ? set.inputs : set.floatInputs;
+            Object copy = converted.get(storage);
+            if (copy == null)
+            {
+                if (singlePrecision)
+                {
+                    float[] floats = new float[set.inputs.length];
+                    for (int i = 0; i < floats.length; i++)
+                    {
+                        floats[i] = (float)set.inputs[i];
+                    }
+                    copy = floats;
+                }
+                else
+                {
+                    double[] doubles = new double[set.floatInputs.length];
+                    for (int i = 0; i < doubles.length; i++)
+                    {
+                        doubles[i] = set.floatInputs[i];
+                    }
+                    copy = doubles;
+                }
+                converted.put(storage, copy);
+            }
+            
+            result[s] = new DataSet(set.numInputs, set.numOutputs, set.outputNames,
+                    singlePrecision ? null : (double[])copy, singlePrecision ? (float[])copy : null,
+                    set.outputs, set.rows, set.offset, set.size);
+        }
+        return result;
+    }
+    
+    /**
+     * @return The class index of each row backing this set. Must not be
+     * modified.
+     */
+    public int[] getOutputData()
+    {
+        return outputs;
     }
     
+    /**
+     * Shuffles the order of the patterns in this set. Only the set's own row
+     * order changes, so other sets sharing its storage are unaffected.
+     */
     public void shuffle()
     {
-        for (int i = 0; i < patterns.length; i++)
+        shuffle(new Rng());
+    }
+    
+    /**
+     * Shuffles the order of the patterns in this set, the same way every
+     * time for the same random numbers.
+     * @param rng 
+     */
+    public void shuffle(Rng rng)
+    {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
         {
-            Pattern temp = patterns[i];
-            int r = (int)(Math.random()*patterns.length);
-            patterns[i] = patterns[r];
-            patterns[r] = temp;
+            order[i] = getRow(i);
         }
+        
+        for (int i = 0; i < size; i++)
+        {
+            int temp = order[i];
+            int r = (int)(rng.nextDouble()*size);
+            order[i] = order[r];
+            order[r] = temp;
+        }
+        
+        rows = order;
+        offset = 0;
     }
     
     public DataSet getSubset(int start)
     {
-        return getSubset(start, patterns.length);
+        return getSubset(start, size);
     }
     
+    /**
+     * Gets a view of a range of this set's patterns. No pattern data is
+     * copied.
+     * @param start First pattern, inclusive.
+     * @param end Last pattern, exclusive.
+     * @return The subset.
+     */
     public DataSet getSubset(int start, int end)
     {
-        Pattern[] newPatterns = new Pattern[end - start];
+        if (start < 0 || end > size || start > end)
+            throw new IndexOutOfBoundsException(String.format("Subset [%d,%d) of %d patterns", start, end, size));
         
-        System.arraycopy(patterns, start, newPatterns, 0, end - start);
+        return new DataSet(numInputs, numOutputs, outputNames, inputs, floatInputs,
+                outputs, rows, offset + start, end - start);
+    }
+    
+    /**
+     * Gets a view of some of this set's patterns. No pattern data is copied.
+     * @param patterns The patterns, in the order wanted.
+     * @return The subset.
+     */
+    public DataSet getSubset(int[] patterns)
+    {
+        int[] order = new int[patterns.length];
+        for (int i = 0; i < patterns.length; i++)
+        {
+            if (patterns[i] < 0 || patterns[i] >= size)
+                throw new IndexOutOfBoundsException(String.format("Pattern %d of %d", patterns[i], size));
+            order[i] = getRow(patterns[i]);
+        }
         
-        return new DataSet(numInputs, numOutputs, outputNames, newPatterns);
+        return new DataSet(numInputs, numOutputs, outputNames, inputs, floatInputs,
+                outputs, order, 0, order.length);
     }
     
     public int getSize()
     {
-        return patterns.length;
+        return size;
     }
     
+    /**
+     * Reads a data set from a file. See DataSetParser for the format.
+     * @param file
+     * @throws IOException If the file cannot be read or is not a valid
+     * DataSet.
+     */
     public DataSet(File file)
             throws IOException
     {
-        Scanner in = new Scanner(file);
+        DataSetParser parser = new DataSetParser(file);
+        parser.parse();
         
+        numInputs = parser.getNumInputs();
+        numOutputs = parser.getNumOutputs();
+        outputNames = parser.getOutputNames();
+        inputs = parser.getInputs();
+        outputs = parser.getOutputs();
+        rows = null;
+        offset = 0;
+        size = parser.getSize();
+    }
+    
+    /**
+     * Reads a data set from a file, using its binary cache if that is up to
+     * date. Otherwise the text is parsed and the cache is written for next
+     * time; a cache that cannot be read is replaced in the same way, and
+     * failing to write the cache is not an error.
+     * @param file
+     * @return The data set.
+     * @throws IOException If the file cannot be read or is not a valid
+     * DataSet.
+     */
+    public static DataSet load(File file)
+            throws IOException
+    {
+        DataSet dataSet;
         try
         {
-            numInputs = in.nextInt();
-            numOutputs = in.nextInt();
-            
-            outputNames = new String[numOutputs];
-            
-            ArrayList<Pattern> plist = new ArrayList<Pattern>();
-            while (in.hasNext())
-            {
-                double[] values = new double[numInputs];
-                for (int i = 0; i < numInputs; i++)
-                {
-                    values[i] = in.nextDouble();
-                }
-                String outname = in.next();
-                int outnum = -1;
-                for (int i = 0; i < numOutputs && outnum == -1; i++)
-                {
-                    if (outputNames[i] == null)
-                    {
-                        outputNames[i] = outname;
-                        outnum = i;
-                    }
-                    else if (outputNames[i].equals(outname))
-                    {
-                        outnum = i;
-                    }
-                }
-                plist.add(new Pattern(values, outnum));
-            }
-            
-            patterns = plist.toArray(new Pattern[0]);
+            dataSet = DataSetCache.read(file);
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            throw new IOException(file.getName() + " (Not a valid DataSet)");
+            dataSet = null;
         }
-        finally
+        if (dataSet == null)
         {
-            in.close();
+            dataSet = new DataSet(file);
+            try
+            {
+                DataSetCache.write(dataSet, file);
+            }
+            catch (IOException e)
+            {
+                // the cache is only an optimisation
+            }
         }
+        return dataSet;
+    }
+    
+    // for internal use only
+    DataSet(int numInputs, int numOutputs, String[] outputNames,
+            double[] inputs, int[] outputs, int size)
+    {
+        this(numInputs, numOutputs, outputNames, inputs, null, outputs, null, 0, size);
     }
     
     // for internal use only
-    private DataSet(int numInputs, int numOutputs, String[] outputNames, Pattern[] patterns)
+    private DataSet(int numInputs, int numOutputs, String[] outputNames,
+            double[] inputs, float[] floatInputs, int[] outputs, int[] rows,
+            int offset, int size)
     {
         this.numInputs = numInputs;
         this.numOutputs = numOutputs;
         this.outputNames = outputNames;
-        this.patterns = patterns;
+        this.inputs = inputs;
+        this.floatInputs = floatInputs;
+        this.outputs = outputs;
+        this.rows = rows;
+        this.offset = offset;
+        this.size = size;
     }
     
     
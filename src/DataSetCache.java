@@ -0,0 +1,401 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A binary copy of a DataSet file, kept next to it so that later runs can
+ * skip parsing the text.
+ * The cache holds a header recording the size and modification time of the
+ * source file, the class names, then the row-major input values as doubles
+ * and the class of each row as ints, all little-endian. A cache whose
+ * recorded size or modification time no longer matches its source, or that
+ * is corrupt or truncated, is ignored.
+ * @author Daniel
+ */
+public class DataSetCache
+{
+    private static final int MAGIC = 0x50534453; // "PSDS"
+    private static final int VERSION = 1;
+
+    // largest number of bytes mapped at once
+    private static final int MAX_MAPPING = 1 << 30;
+
+    private DataSetCache()
+    {
+    }
+
+    /**
+     * The layout of a cache file.
+     */
+    static class Header
+    {
+        int numInputs;
+        int numOutputs;
+        int size;
+        String[] outputNames;
+
+        // file offsets of the input values and the classes
+        long inputsStart;
+        long outputsStart;
+
+        /**
+         * Reads the header of a cache file.
+         * @return The header, or null if the cache is not for the current
+         * version of source, or is corrupt or truncated.
+         */
+        static Header read(FileChannel channel, File source)
+                throws IOException
+        {
+            long length = channel.size();
+            if (length < 36)
+                return null;
+
+            ByteBuffer buffer = map(channel, FileChannel.MapMode.READ_ONLY, 0, Math.min(length, MAX_MAPPING));
+            try
+            {
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                    return null;
+                if (buffer.getLong() != source.length() || buffer.getLong() != source.lastModified())
+                    return null;
+
+                Header header = new Header();
+                header.numInputs = buffer.getInt();
+                header.numOutputs = buffer.getInt();
+                header.size = buffer.getInt();
+                // each name takes at least 4 bytes
+                if (header.numInputs < 0 || header.size < 0 || header.numOutputs < 0
+                        || header.numOutputs > buffer.remaining()/4)
+                    return null;
+
+                header.outputNames = new String[header.numOutputs];
+                for (int i = 0; i < header.numOutputs; i++)
+                {
+                    int nameLength = buffer.getInt();
+                    if (nameLength > buffer.remaining())
+                        return null;
+                    if (nameLength >= 0)
+                    {
+                        byte[] name = new byte[nameLength];
+                        buffer.get(name);
+                        header.outputNames[i] = new String(name, "UTF-8");
+                    }
+                }
+
+                header.inputsStart = align(buffer.position());
+                header.outputsStart = header.inputsStart + 8L*header.size*header.numInputs;
+                if (length != header.outputsStart + 4L*header.size)
+                    return null;
+                return header;
+            }
+            catch (BufferUnderflowException e)
+            {
+                return null;
+            }
+        }
+
+        // Writes the header into a new cache file of the right length,
+        // returning where the input values start.
+        static long write(RandomAccessFile raf, File source, int numInputs,
+                int numOutputs, String[] outputNames, int size)
+                throws IOException
+        {
+            byte[][] names = new byte[numOutputs][];
+            int headerLength = 36;
+            for (int i = 0; i < numOutputs; i++)
+            {
+                if (outputNames[i] != null)
+                {
+                    names[i] = outputNames[i].getBytes("UTF-8");
+                    headerLength += names[i].length;
+                }
+                headerLength += 4;
+            }
+            long inputsStart = align(headerLength);
+            raf.setLength(inputsStart + 8L*size*numInputs + 4L*size);
+
+            ByteBuffer buffer = map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, 0, inputsStart);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(source.length());
+            buffer.putLong(source.lastModified());
+            buffer.putInt(numInputs);
+            buffer.putInt(numOutputs);
+            buffer.putInt(size);
+            for (int i = 0; i < numOutputs; i++)
+            {
+                if (names[i] == null)
+                {
+                    buffer.putInt(-1);
+                }
+                else
+                {
+                    buffer.putInt(names[i].length);
+                    buffer.put(names[i]);
+                }
+            }
+            return inputsStart;
+        }
+    }
+
+    /**
+     * @param source A DataSet text file.
+     * @return The cache file used for it.
+     */
+    public static File getCacheFile(File source)
+    {
+        return new File(source.getPath() + ".cache");
+    }
+
+    /**
+     * Reads the cached copy of a DataSet file.
+     * @param source The DataSet text file.
+     * @return The data set, or null if there is no up to date cache, or it
+     * is corrupt or truncated.
+     * @throws IOException If the cache exists but cannot be read.
+     */
+    public static DataSet read(File source)
+            throws IOException
+    {
+        File cache = getCacheFile(source);
+        if (!cache.isFile())
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(cache, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            Header header = Header.read(channel, source);
+            if (header == null)
+                return null;
+
+            int numInputs = header.numInputs;
+            int size = header.size;
+            long position = header.inputsStart;
+
+            double[] inputs = new double[size*numInputs];
+            for (int done = 0; done < inputs.length;)
+            {
+                int count = Math.min(inputs.length - done, MAX_MAPPING/8);
+                map(channel, FileChannel.MapMode.READ_ONLY, position, 8L*count)
+                        .asDoubleBuffer().get(inputs, done, count);
+                done += count;
+                position += 8L*count;
+            }
+
+            int[] outputs = new int[size];
+            for (int done = 0; done < outputs.length;)
+            {
+                int count = Math.min(outputs.length - done, MAX_MAPPING/4);
+                map(channel, FileChannel.MapMode.READ_ONLY, position, 4L*count)
+                        .asIntBuffer().get(outputs, done, count);
+                done += count;
+                position += 4L*count;
+            }
+            for (int p = 0; p < size; p++)
+            {
+                if (outputs[p] < 0 || outputs[p] >= header.numOutputs)
+                    return null;
+            }
+
+            return new DataSet(numInputs, header.numOutputs, header.outputNames, inputs, outputs, size);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a cached copy of a data set read from a DataSet file. The cache
+     * is written to a temporary file first and then renamed, so a crash
+     * never leaves a half written cache behind.
+     * @param dataSet The data set, as read from source, in double precision.
+     * @param source The DataSet text file.
+     * @throws IOException If the cache cannot be written.
+     */
+    public static void write(DataSet dataSet, File source)
+            throws IOException
+    {
+        if (dataSet.isSinglePrecision())
+            throw new IllegalArgumentException("Only double precision data sets are cached.");
+        
+        File cache = getCacheFile(source);
+        File temp = new File(cache.getPath() + ".tmp");
+
+        int numInputs = dataSet.getNumInputs();
+        int size = dataSet.getSize();
+
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try
+        {
+            long dataStart = Header.write(raf, source, numInputs,
+                    dataSet.getNumOutputs(), dataSet.getOutputNames(), size);
+            FileChannel channel = raf.getChannel();
+
+            // rows are written in this set's order
+            double[] inputs = dataSet.getInputData();
+            int[] outputs = dataSet.getOutputData();
+            int rowsPerMapping = Math.max(1, MAX_MAPPING/(8*Math.max(1, numInputs)));
+            long position = dataStart;
+            for (int p = 0; p < size;)
+            {
+                int count = Math.min(size - p, rowsPerMapping);
+                DoubleBuffer buffer = map(channel, FileChannel.MapMode.READ_WRITE, position, 8L*count*numInputs).asDoubleBuffer();
+                for (int end = p + count; p < end; p++)
+                {
+                    buffer.put(inputs, dataSet.getRow(p)*numInputs, numInputs);
+                }
+                position += 8L*count*numInputs;
+            }
+            for (int p = 0; p < size;)
+            {
+                int count = Math.min(size - p, MAX_MAPPING/4);
+                IntBuffer buffer = map(channel, FileChannel.MapMode.READ_WRITE, position, 4L*count).asIntBuffer();
+                for (int end = p + count; p < end; p++)
+                {
+                    buffer.put(outputs[dataSet.getRow(p)]);
+                }
+                position += 4L*count;
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        replace(temp, cache);
+    }
+
+    /**
+     * Writes the cache for a DataSet file without holding the data set in
+     * memory, so it works for files larger than the heap. The text is parsed
+     * a piece at a time into temporary files, which are then joined.
+     * @param source The DataSet text file.
+     * @throws IOException If the source is not a valid DataSet or the cache
+     * cannot be written.
+     */
+    public static void create(File source)
+            throws IOException
+    {
+        File cache = getCacheFile(source);
+        File temp = new File(cache.getPath() + ".tmp");
+        File inputsFile = new File(cache.getPath() + ".inputs.tmp");
+        File outputsFile = new File(cache.getPath() + ".outputs.tmp");
+
+        final RandomAccessFile inputsOut = new RandomAccessFile(inputsFile, "rw");
+        final RandomAccessFile outputsOut = new RandomAccessFile(outputsFile, "rw");
+        try
+        {
+            inputsOut.setLength(0);
+            outputsOut.setLength(0);
+
+            final DataSetParser parser = new DataSetParser(source);
+            parser.parse(new DataSetParser.Listener()
+            {
+                private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+                @Override
+                public void patterns(double[] inputs, int[] outputs, int size)
+                        throws IOException
+                {
+                    int length = size*parser.getNumInputs();
+                    for (int i = 0; i < length;)
+                    {
+                        int count = Math.min(length - i, buffer.capacity()/8);
+                        buffer.clear();
+                        buffer.asDoubleBuffer().put(inputs, i, count);
+                        buffer.limit(8*count);
+                        write(inputsOut.getChannel(), buffer);
+                        i += count;
+                    }
+                    for (int i = 0; i < size;)
+                    {
+                        int count = Math.min(size - i, buffer.capacity()/4);
+                        buffer.clear();
+                        buffer.asIntBuffer().put(outputs, i, count);
+                        buffer.limit(4*count);
+                        write(outputsOut.getChannel(), buffer);
+                        i += count;
+                    }
+                }
+            });
+
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try
+            {
+                long position = Header.write(raf, source, parser.getNumInputs(),
+                        parser.getNumOutputs(), parser.getOutputNames(), parser.getSize());
+                FileChannel channel = raf.getChannel();
+                position += transfer(inputsOut.getChannel(), channel, position);
+                transfer(outputsOut.getChannel(), channel, position);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        finally
+        {
+            inputsOut.close();
+            outputsOut.close();
+            inputsFile.delete();
+            outputsFile.delete();
+        }
+
+        replace(temp, cache);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    // copies all of from into to at position, returning the bytes copied
+    private static long transfer(FileChannel from, FileChannel to, long position)
+            throws IOException
+    {
+        long length = from.size();
+        for (long done = 0; done < length;)
+        {
+            done += from.transferTo(done, length - done, to.position(position + done));
+        }
+        return length;
+    }
+
+    // moves a finished temporary file over the cache
+    private static void replace(File temp, File cache)
+            throws IOException
+    {
+        // File.renameTo will not replace an existing file on some platforms
+        if (!temp.renameTo(cache) && !(cache.delete() && temp.renameTo(cache)))
+        {
+            temp.delete();
+            throw new IOException(cache.getName() + " (Could not write DataSet cache)");
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size)
+            throws IOException
+    {
+        ByteBuffer buffer = channel.map(mode, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // arrays start on an 8 byte boundary
+    private static long align(long position)
+    {
+        return (position + 7) & ~7L;
+    }
+}
@@ -0,0 +1,659 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a DataSet file.
+ * The file starts with a "numInputs numOutputs" header, followed by one
+ * pattern per line: numInputs values and then a class name, separated by
+ * whitespace. The file is memory-mapped and parsed straight from its bytes;
+ * large files are split into chunks at line boundaries and the chunks are
+ * parsed in parallel.
+ * @author Daniel
+ */
+public class DataSetParser
+{
+    // files smaller than this are parsed on the calling thread
+    private static final long PARALLEL_THRESHOLD = 4L << 20;
+
+    // largest region mapped at once
+    private static final long MAX_CHUNK = 256L << 20;
+
+    // size of the pieces handed to a Listener
+    private static final long STREAM_CHUNK = 32L << 20;
+
+    // powers of ten that are exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private File file;
+
+    private int numInputs;
+    private int numOutputs;
+    private String[] outputNames;
+    private int numNames;
+    private double[] inputs;
+    private int[] outputs;
+    private int size;
+
+    /**
+     * Receives the patterns of a file a piece at a time, in file order.
+     */
+    public interface Listener
+    {
+        /**
+         * @param inputs Row-major input values of the patterns. Only valid
+         * for the duration of the call.
+         * @param outputs Class index of each pattern.
+         * @param size Number of patterns.
+         * @throws IOException 
+         */
+        void patterns(double[] inputs, int[] outputs, int size)
+                throws IOException;
+    }
+
+    public DataSetParser(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Parses the file.
+     * @throws IOException If the file cannot be read, or is not a valid
+     * DataSet, in which case the message gives the offending line.
+     */
+    public void parse()
+            throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+
+            // header
+            Chunk header = new Chunk(channel, 0, Math.min(length, 4096));
+            long start = header.parseHeader();
+
+            int numChunks = 1;
+            if (length - start > PARALLEL_THRESHOLD)
+            {
+                numChunks = Math.max(Runtime.getRuntime().availableProcessors(),
+                        (int)((length - start + MAX_CHUNK - 1) / MAX_CHUNK));
+            }
+
+            List<Chunk> chunks = split(channel, start, length, numChunks);
+            if (chunks.size() == 1)
+            {
+                chunks.get(0).parse();
+            }
+            else
+            {
+                parseAll(chunks);
+            }
+
+            merge(chunks);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Parses the file a piece at a time, passing the patterns to a listener
+     * instead of keeping them, so files larger than the heap can be read.
+     * Afterwards getInputs() and getOutputs() are null, but the header, the
+     * class names and the size are available.
+     * @param listener
+     * @throws IOException If the file cannot be read, is not a valid
+     * DataSet, or the listener fails.
+     */
+    public void parse(Listener listener)
+            throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+
+            Chunk header = new Chunk(channel, 0, Math.min(length, 4096));
+            long start = header.parseHeader();
+
+            int numChunks = (int)Math.max(1, (length - start + STREAM_CHUNK - 1) / STREAM_CHUNK);
+            List<Chunk> chunks = split(channel, start, length, numChunks);
+
+            outputNames = new String[numOutputs];
+            numNames = 0;
+            size = 0;
+            int line = 2; // the header is line 1
+            for (int c = 0; c < chunks.size(); c++)
+            {
+                Chunk chunk = chunks.get(c);
+                chunks.set(c, null); // let each piece go once it is done
+                chunk.parse();
+                if (chunk.errorLine >= 0)
+                    throw error(line + chunk.errorLine, chunk.errorMessage);
+
+                int[] map = mapNames(chunk, line);
+                for (int p = 0; p < chunk.size; p++)
+                {
+                    chunk.outputs[p] = map[chunk.outputs[p]];
+                }
+                listener.patterns(chunk.inputs, chunk.outputs, chunk.size);
+
+                size += chunk.size;
+                line += chunk.lines;
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // Splits [start,length) into chunks that each begin at the start of a line.
+    private List<Chunk> split(FileChannel channel, long start, long length, int numChunks)
+            throws IOException
+    {
+        List<Chunk> chunks = new ArrayList<Chunk>(numChunks);
+        long chunkSize = (length - start + numChunks - 1) / numChunks;
+        long from = start;
+        while (from < length || chunks.isEmpty())
+        {
+            long to = Math.min(from + chunkSize, length);
+            // move the boundary just past the next newline
+            ByteBuffer buffer = null;
+            while (to < length)
+            {
+                if (buffer == null)
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, to, Math.min(length - to, 1 << 16));
+                if (!buffer.hasRemaining())
+                {
+                    buffer = null;
+                    continue;
+                }
+                to++;
+                if (buffer.get() == '\n')
+                    break;
+            }
+            chunks.add(new Chunk(channel, from, to));
+            from = to;
+        }
+        return chunks;
+    }
+
+    private void parseAll(List<Chunk> chunks)
+            throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(chunks.size(), Runtime.getRuntime().availableProcessors()));
+        try
+        {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks.size());
+            for (final Chunk chunk : chunks)
+            {
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        chunk.parse();
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(file.getName() + " (Interrupted while reading)");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(file.getName() + " (" + e.getCause() + ")");
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    // Joins the chunks in file order, numbering classes by first appearance.
+    private void merge(List<Chunk> chunks)
+            throws IOException
+    {
+        // errors are reported against the first bad line in the file
+        int line = 2; // the header is line 1
+        for (Chunk chunk : chunks)
+        {
+            if (chunk.errorLine >= 0)
+                throw error(line + chunk.errorLine, chunk.errorMessage);
+            line += chunk.lines;
+        }
+
+        size = 0;
+        for (Chunk chunk : chunks)
+        {
+            size += chunk.size;
+        }
+        inputs = new double[size*numInputs];
+        outputs = new int[size];
+        outputNames = new String[numOutputs];
+        numNames = 0;
+
+        int row = 0;
+        line = 2;
+        for (Chunk chunk : chunks)
+        {
+            int[] map = mapNames(chunk, line);
+
+            System.arraycopy(chunk.inputs, 0, inputs, row*numInputs, chunk.size*numInputs);
+            for (int p = 0; p < chunk.size; p++)
+            {
+                outputs[row + p] = map[chunk.outputs[p]];
+            }
+            row += chunk.size;
+            line += chunk.lines;
+        }
+    }
+
+    // Maps a chunk's class numbers to the file's, adding any new names.
+    // line is the line the chunk starts on.
+    private int[] mapNames(Chunk chunk, int line)
+            throws IOException
+    {
+        int[] map = new int[chunk.names.size()];
+        for (int n = 0; n < map.length; n++)
+        {
+            String name = new String(chunk.names.get(n), "UTF-8");
+            map[n] = -1;
+            for (int i = 0; i < numNames && map[n] == -1; i++)
+            {
+                if (outputNames[i].equals(name))
+                    map[n] = i;
+            }
+            if (map[n] == -1)
+            {
+                if (numNames == numOutputs)
+                    throw error(line + chunk.nameLines[n], "more than " + numOutputs + " classes");
+                outputNames[numNames] = name;
+                map[n] = numNames++;
+            }
+        }
+        return map;
+    }
+
+    private IOException error(int line, String message)
+    {
+        return new IOException(file.getName() + ":" + line + " (Not a valid DataSet: " + message + ")");
+    }
+
+    /**
+     * Parses a decimal number from a region of a byte buffer.
+     * Numbers whose digits fit in 53 bits and whose exponent is at most 22
+     * are converted directly, which is exact for those; anything else is
+     * handed to Double.parseDouble. Either way the result is the same as
+     * Double.parseDouble would give.
+     * @param buffer
+     * @param start First byte of the number.
+     * @param end Byte after the number.
+     * @return The value.
+     * @throws NumberFormatException If the bytes are not a number.
+     */
+    public static double parseDouble(ByteBuffer buffer, int start, int end)
+    {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+        {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+
+        // integer part
+        for (; i < end; i++)
+        {
+            int d = buffer.get(i) - '0';
+            if (d < 0 || d > 9) break;
+            any = true;
+            if (mantissa == 0 && d == 0) continue; // leading zero
+            if (digits < 18)
+            {
+                mantissa = mantissa*10 + d;
+                digits++;
+            }
+            else
+            {
+                return slowParse(buffer, start, end);
+            }
+        }
+        // fraction
+        if (i < end && buffer.get(i) == '.')
+        {
+            for (i++; i < end; i++)
+            {
+                int d = buffer.get(i) - '0';
+                if (d < 0 || d > 9) break;
+                any = true;
+                if (mantissa == 0 && d == 0)
+                {
+                    exponent--;
+                    continue;
+                }
+                if (digits < 18)
+                {
+                    mantissa = mantissa*10 + d;
+                    digits++;
+                    exponent--;
+                }
+                else
+                {
+                    return slowParse(buffer, start, end);
+                }
+            }
+        }
+        if (!any)
+            return slowParse(buffer, start, end);
+        // exponent
+        if (i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E'))
+        {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+            {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            if (i == end || end - i > 4)
+                return slowParse(buffer, start, end);
+            int e = 0;
+            for (; i < end; i++)
+            {
+                int d = buffer.get(i) - '0';
+                if (d < 0 || d > 9) return slowParse(buffer, start, end);
+                e = e*10 + d;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end)
+            return slowParse(buffer, start, end);
+
+        double value;
+        if (mantissa == 0)
+        {
+            value = 0;
+        }
+        else if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22)
+        {
+            // both operands are exact, so the single rounding is correct
+            value = exponent < 0
+                    ? mantissa / POWERS_OF_TEN[-exponent]
+                    : mantissa * POWERS_OF_TEN[exponent];
+        }
+        else
+        {
+            return slowParse(buffer, start, end);
+        }
+        return negative ? -value : value;
+    }
+
+    private static double slowParse(ByteBuffer buffer, int start, int end)
+    {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++)
+        {
+            chars[i - start] = (char)(buffer.get(i) & 0xff);
+        }
+        return Double.parseDouble(new String(chars));
+    }
+
+    private static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    // A region of the file starting at the beginning of a line.
+    private class Chunk
+    {
+        private ByteBuffer buffer;
+        private long base;
+        private int pos;
+        private int limit;
+
+        private double[] inputs;
+        private int[] outputs;
+        private int size;
+
+        // class names in order of first appearance in this chunk, and the
+        // local line they first appeared on
+        private List<byte[]> names = new ArrayList<byte[]>();
+        private int[] nameLines = new int[4];
+
+        // number of lines in this chunk, and the first bad one
+        private int lines = 0;
+        private int errorLine = -1;
+        private String errorMessage;
+
+        private Chunk(FileChannel channel, long from, long to)
+                throws IOException
+        {
+            this.base = from;
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            this.pos = 0;
+            this.limit = (int)(to - from);
+        }
+
+        // Reads the header into the parser, returning the file offset of
+        // the first pattern.
+        private long parseHeader()
+                throws IOException
+        {
+            int[] header = new int[2];
+            for (int h = 0; h < 2; h++)
+            {
+                skipSpace();
+                int start = pos;
+                while (pos < limit && !isSpace(buffer.get(pos)) && buffer.get(pos) != '\n') pos++;
+                try
+                {
+                    header[h] = Integer.parseInt(token(start, pos));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw error(1, "expected \"numInputs numOutputs\"");
+                }
+            }
+            skipSpace();
+            if (pos < limit && buffer.get(pos) != '\n')
+                throw error(1, "expected \"numInputs numOutputs\"");
+            if (pos < limit) pos++;
+            if (header[0] < 0 || header[1] < 1)
+                throw error(1, "bad header");
+            DataSetParser.this.numInputs = header[0];
+            DataSetParser.this.numOutputs = header[1];
+            return base + pos;
+        }
+
+        private void parse()
+        {
+            // rough guess at the row count: 6 bytes per value
+            int capacity = Math.max(16, limit / (6*(numInputs+1)));
+            inputs = new double[capacity*numInputs];
+            outputs = new int[capacity];
+
+            while (pos < limit)
+            {
+                skipSpace();
+                if (pos < limit && buffer.get(pos) == '\n')
+                {
+                    // blank line
+                    pos++;
+                    lines++;
+                    continue;
+                }
+                if (pos == limit) break;
+
+                if (size == outputs.length)
+                {
+                    outputs = Arrays.copyOf(outputs, size*2);
+                    inputs = Arrays.copyOf(inputs, size*2*numInputs);
+                }
+
+                for (int i = 0; i < numInputs; i++)
+                {
+                    skipSpace();
+                    int start = pos;
+                    while (pos < limit && !isSpace(buffer.get(pos)) && buffer.get(pos) != '\n') pos++;
+                    if (start == pos)
+                    {
+                        fail("expected " + numInputs + " values and a class name");
+                        return;
+                    }
+                    try
+                    {
+                        inputs[size*numInputs + i] = parseDouble(buffer, start, pos);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        fail("expected a number but found '" + token(start, pos) + "'");
+                        return;
+                    }
+                }
+
+                skipSpace();
+                int start = pos;
+                while (pos < limit && !isSpace(buffer.get(pos)) && buffer.get(pos) != '\n') pos++;
+                if (start == pos)
+                {
+                    fail("missing class name");
+                    return;
+                }
+                outputs[size] = name(start, pos);
+
+                skipSpace();
+                if (pos < limit && buffer.get(pos) != '\n')
+                {
+                    fail("unexpected '" + token(pos, nextSpace(pos)) + "' after the class name");
+                    return;
+                }
+                if (pos < limit) pos++;
+                lines++;
+                size++;
+            }
+        }
+
+        // Finds the class name between start and end, adding it if new.
+        private int name(int start, int end)
+        {
+            int length = end - start;
+            for (int n = 0; n < names.size(); n++)
+            {
+                byte[] name = names.get(n);
+                if (name.length != length) continue;
+                int i = 0;
+                while (i < length && name[i] == buffer.get(start + i)) i++;
+                if (i == length) return n;
+            }
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                name[i] = buffer.get(start + i);
+            }
+            if (names.size() == nameLines.length)
+                nameLines = Arrays.copyOf(nameLines, nameLines.length*2);
+            nameLines[names.size()] = lines;
+            names.add(name);
+            return names.size() - 1;
+        }
+
+        private void fail(String message)
+        {
+            errorLine = lines;
+            errorMessage = message;
+        }
+
+        private void skipSpace()
+        {
+            while (pos < limit && isSpace(buffer.get(pos))) pos++;
+        }
+
+        private int nextSpace(int from)
+        {
+            int i = from;
+            while (i < limit && !isSpace(buffer.get(i)) && buffer.get(i) != '\n') i++;
+            return i;
+        }
+
+        private String token(int start, int end)
+        {
+            char[] chars = new char[end - start];
+            for (int i = start; i < end; i++)
+            {
+                chars[i - start] = (char)(buffer.get(i) & 0xff);
+            }
+            return new String(chars);
+        }
+    }
+
+    public int getNumInputs()
+    {
+        return numInputs;
+    }
+
+    public int getNumOutputs()
+    {
+        return numOutputs;
+    }
+
+    public String[] getOutputNames()
+    {
+        return outputNames;
+    }
+
+    /**
+     * @return The row-major input values of every pattern.
+     */
+    public double[] getInputs()
+    {
+        return inputs;
+    }
+
+    /**
+     * @return The class index of every pattern.
+     */
+    public int[] getOutputs()
+    {
+        return outputs;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+}
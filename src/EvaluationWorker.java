@@ -0,0 +1,219 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * A worker process for distributed fitness evaluation (see RemoteEvaluator).
+ * It loads its own copy of the data set, and for each coordinator that
+ * connects builds a neural network to the coordinator's description, then
+ * scores batches of weight vectors on the coordinator's training patterns.
+ * <p>
+ * Run with: java EvaluationWorker &lt;port&gt; &lt;data file&gt;
+ * @author Daniel
+ */
+public class EvaluationWorker
+{
+    static final int MAGIC = 0x50534f57; // "PSOW"
+    static final int OK = 0;
+    static final int ERROR = 1;
+    // sent instead of a batch id to end a session
+    static final int END = -1;
+
+    private DataSet dataSet;
+
+    /**
+     * @param dataSet The data set, read from the same file as the
+     * coordinator's so that rows match.
+     */
+    public EvaluationWorker(DataSet dataSet)
+    {
+        this.dataSet = dataSet;
+    }
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: java EvaluationWorker <port> <data file>");
+            System.exit(1);
+        }
+
+        DataSet dataSet = DataSet.load(new File(args[1]));
+        ServerSocket server = new ServerSocket(Integer.parseInt(args[0]));
+        System.out.println("Listening on port " + server.getLocalPort());
+        new EvaluationWorker(dataSet).serve(server);
+    }
+
+    /**
+     * Serves coordinators, each on its own thread, until the server socket
+     * is closed.
+     * @param server
+     * @throws IOException If accepting a connection fails.
+     */
+    public void serve(ServerSocket server)
+            throws IOException
+    {
+        while (true)
+        {
+            final Socket socket = server.accept();
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        session(socket);
+                    }
+                    catch (IOException e)
+                    {
+                        System.err.println("Coordinator " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                    }
+                    catch (RuntimeException e)
+                    {
+                        System.err.println("Coordinator " + socket.getRemoteSocketAddress() + ": " + e);
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            socket.close();
+                        }
+                        catch (IOException e)
+                        {
+                            // already gone
+                        }
+                    }
+                }
+            }, "EvaluationWorker " + socket.getRemoteSocketAddress());
+            thread.start();
+        }
+    }
+
+    private void session(Socket socket)
+            throws IOException
+    {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        // the coordinator describes its network and training patterns
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a PSO coordinator.");
+        int numInputs = in.readInt();
+        int numHiddenUnits = in.readInt();
+        int numOutputs = in.readInt();
+        String function = in.readUTF();
+        int numRows = in.readInt();
+        int numTraining = in.readInt();
+        if (numTraining < 0 || numTraining > dataSet.getSize())
+            fail(out, "Bad number of training patterns: " + numTraining + ".");
+        // the whole request is read before answering, so the coordinator
+        // is not cut off while still sending
+        int[] rows = new int[numTraining];
+        int badRow = -1;
+        for (int i = 0; i < rows.length; i++)
+        {
+            rows[i] = in.readInt();
+            if (rows[i] < 0 || rows[i] >= dataSet.getSize())
+                badRow = i;
+        }
+
+        if (numInputs != dataSet.getNumInputs() || numOutputs != dataSet.getNumOutputs()
+                || numRows != dataSet.getSize())
+            fail(out, "The worker's data set does not match the coordinator's.");
+        if (badRow >= 0)
+            fail(out, "Training pattern " + rows[badRow] + " out of range.");
+        if (numHiddenUnits < 1)
+            fail(out, "Bad number of hidden units: " + numHiddenUnits + ".");
+
+        NeuralNetwork network = null;
+        try
+        {
+            // the class is only initialised once it is known to be a Function
+            Class<?> type = Class.forName(function, false, EvaluationWorker.class.getClassLoader());
+            if (Function.class.isAssignableFrom(type))
+            {
+                network = new NeuralNetwork(numInputs, numHiddenUnits, numOutputs,
+                        type.asSubclass(Function.class).getDeclaredConstructor().newInstance());
+            }
+        }
+        catch (Exception e)
+        {
+            network = null;
+        }
+        if (network == null)
+            fail(out, "Unknown activation function " + function + ".");
+        out.writeInt(OK);
+        out.flush();
+
+        DataSet training = dataSet.getSubset(rows);
+        double[] weights = new double[network.getNumWeights()];
+        double[] results = new double[0];
+        while (true)
+        {
+            int id;
+            try
+            {
+                id = in.readInt();
+            }
+            catch (EOFException e)
+            {
+                return;
+            }
+            if (id == END)
+                return;
+
+            // a batch: the range of training patterns, then the positions
+            int start = in.readInt();
+            int end = in.readInt();
+            if (start < 0 || start > end || end > rows.length)
+                throw new IOException("Bad range of training patterns [" + start + "," + end + ").");
+            DataSet batch = training.getSubset(start, end);
+            int count = in.readInt();
+            if (count < 0)
+                throw new IOException("Bad number of positions: " + count + ".");
+            if (in.readInt() != weights.length)
+                throw new IOException("Wrong number of weights.");
+            for (int j = 0; j < count; j++)
+            {
+                // grown as positions arrive, so a bad count cannot exhaust
+                // the heap before the stream runs out
+                if (j == results.length)
+                    results = Arrays.copyOf(results, Math.max(16, 2*j));
+                for (int i = 0; i < weights.length; i++)
+                {
+                    weights[i] = in.readDouble();
+                }
+                results[j] = network.run(weights, batch).getMeanSquaredError();
+            }
+
+            out.writeInt(id);
+            out.writeInt(count);
+            for (int j = 0; j < count; j++)
+            {
+                out.writeDouble(results[j]);
+            }
+            out.flush();
+        }
+    }
+
+    // tells the coordinator why the session cannot go ahead, and ends it
+    private static void fail(DataOutputStream out, String error)
+            throws IOException
+    {
+        out.writeInt(ERROR);
+        out.writeUTF(error);
+        out.flush();
+        throw new IOException(error);
+    }
+}
@@ -1,11 +1,46 @@
 /**
- *
+ * A neuron activation function.
+ * Networks apply it a whole layer at a time with apply, so that there is
+ * one virtual call per layer rather than one per neuron, however many
+ * kinds of Function are in use. Subclasses can override apply with a loop
+ * of their own, which the JIT can then compile for that function alone.
+ * Functions must not have mutable state, as one may be shared by networks
+ * on different threads.
  * @author Daniel
  */
 public abstract class Function
 {
     public abstract double f(double x);
     
+    /**
+     * Applies the function in place to part of an array.
+     * @param buf The values.
+     * @param off The first value to apply it to.
+     * @param len The number of values to apply it to.
+     */
+    public void apply(double[] buf, int off, int len)
+    {
+        for (int i = off; i < off + len; i++)
+        {
+            buf[i] = f(buf[i]);
+        }
+    }
+    
+    /**
+     * Applies the function in place to part of an array of single precision
+     * values, rounding the results.
+     * @param buf The values.
+     * @param off The first value to apply it to.
+     * @param len The number of values to apply it to.
+     */
+    public void apply(float[] buf, int off, int len)
+    {
+        for (int i = off; i < off + len; i++)
+        {
+            buf[i] = (float)f(buf[i]);
+        }
+    }
+    
     public static class Sigmoid extends Function
     {
 
@@ -14,6 +49,24 @@ public abstract class Function
         {
             return 1.0/(1.0 + Math.exp(-x));
         }
+
+        @Override
+        public void apply(double[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = 1.0/(1.0 + Math.exp(-buf[i]));
+            }
+        }
+
+        @Override
+        public void apply(float[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = (float)(1.0/(1.0 + Math.exp(-buf[i])));
+            }
+        }
         
     }
     
@@ -25,6 +78,18 @@ public abstract class Function
         {
             return x; // ???
         }
+
+        @Override
+        public void apply(double[] buf, int off, int len)
+        {
+            // nothing to do
+        }
+
+        @Override
+        public void apply(float[] buf, int off, int len)
+        {
+            // nothing to do
+        }
         
     }
     
@@ -36,6 +101,176 @@ public abstract class Function
         {
             return x < 0 ? 0 : 1;
         }
+
+        @Override
+        public void apply(double[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = buf[i] < 0 ? 0 : 1;
+            }
+        }
+
+        @Override
+        public void apply(float[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = buf[i] < 0 ? 0 : 1;
+            }
+        }
+        
+    }
+    
+    public static class Tanh extends Function
+    {
+
+        @Override
+        public double f(double x)
+        {
+            return Math.tanh(x);
+        }
+
+        @Override
+        public void apply(double[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = Math.tanh(buf[i]);
+            }
+        }
+
+        @Override
+        public void apply(float[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = (float)Math.tanh(buf[i]);
+            }
+        }
+        
+    }
+    
+    /**
+     * The sigmoid, looked up in a table instead of calling Math.exp.
+     * The table holds the sigmoid at steps of 1/64 over [-16,16], and values
+     * in between are linearly interpolated. The error of linear
+     * interpolation is at most h^2/8 times the largest second derivative,
+     * which for the sigmoid is 1/(6*sqrt(3)); with h = 1/64 that is under
+     * 3e-6. Outside the table the result is 0 or 1, off by at most
+     * 1.2e-7. So the result is always within 3e-6 of Sigmoid's. Applied to
+     * single precision values, rounding can add another 2e-7.
+     */
+    public static class FastSigmoid extends Function
+    {
+        /**
+         * The largest difference from the exact sigmoid.
+         */
+        public static final double MAX_ERROR = 3e-6;
+        
+        private static final double MIN = -16;
+        private static final double SCALE = 64; // steps per unit
+        private static final double[] TABLE = new double[(int)(-2*MIN*SCALE) + 1];
+        // the same, for working in single precision
+        private static final float[] FLOAT_TABLE = new float[TABLE.length];
+        
+        static
+        {
+            for (int i = 0; i < TABLE.length; i++)
+            {
+                TABLE[i] = 1.0/(1.0 + Math.exp(-(MIN + i/SCALE)));
+                FLOAT_TABLE[i] = (float)TABLE[i];
+            }
+        }
+
+        @Override
+        public double f(double x)
+        {
+            return sigmoid(x);
+        }
+
+        @Override
+        public void apply(double[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = sigmoid(buf[i]);
+            }
+        }
+
+        @Override
+        public void apply(float[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = sigmoid(buf[i]);
+            }
+        }
+        
+        static double sigmoid(double x)
+        {
+            double t = (x - MIN)*SCALE;
+            if (t >= 0 && t < TABLE.length - 1)
+            {
+                int i = (int)t;
+                double a = TABLE[i];
+                return a + (t - i)*(TABLE[i + 1] - a);
+            }
+            // saturated, or NaN
+            return x < 0 ? 0 : x > 0 ? 1 : x;
+        }
+        
+        // single precision throughout, as converting to double and back
+        // costs more than the lookup
+        static float sigmoid(float x)
+        {
+            float t = (x - (float)MIN)*(float)SCALE;
+            if (t >= 0 && t < FLOAT_TABLE.length - 1)
+            {
+                int i = (int)t;
+                float a = FLOAT_TABLE[i];
+                return a + (t - i)*(FLOAT_TABLE[i + 1] - a);
+            }
+            return x < 0 ? 0 : x > 0 ? 1 : x;
+        }
+        
+    }
+    
+    /**
+     * The hyperbolic tangent, worked out from FastSigmoid's table as
+     * tanh(x) = 2*sigmoid(2x) - 1. The result is always within 6e-6 of
+     * Tanh's, twice FastSigmoid's error.
+     */
+    public static class FastTanh extends Function
+    {
+        /**
+         * The largest difference from the exact hyperbolic tangent.
+         */
+        public static final double MAX_ERROR = 2*FastSigmoid.MAX_ERROR;
+
+        @Override
+        public double f(double x)
+        {
+            return 2*FastSigmoid.sigmoid(2*x) - 1;
+        }
+
+        @Override
+        public void apply(double[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = 2*FastSigmoid.sigmoid(2*buf[i]) - 1;
+            }
+        }
+
+        @Override
+        public void apply(float[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                buf[i] = 2*FastSigmoid.sigmoid(2*buf[i]) - 1;
+            }
+        }
         
     }
     
@@ -0,0 +1,183 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Island model Particle Swarm Optimisation.
+ * Runs several independent swarms (islands) side by side, one thread each,
+ * and every so many iterations lets them exchange their best positions. The
+ * islands only meet at these migrations, so they scale across cores far
+ * better than one big swarm, and keep more diversity between migrations.
+ * The islands are ordinary PSOs, e.g. PSONNs sharing the same split of the
+ * data, each with its own topology and particles.
+ * @author Daniel
+ */
+public class IslandPSO
+{
+    private PSO[] islands;
+    private Topology migration;
+    private int migrationInterval;
+
+    // each island's best position, as the population of the migration topology
+    private Particle[] representatives;
+
+    /**
+     * Creates an island model PSO.
+     * @param islands The swarms. Each runs for its own maximum number of
+     * iterations, synchronously, and should be given one worker thread since
+     * the islands themselves are run in parallel.
+     * @param migration The topology (e.g. Ring or Star) over the islands
+     * along which best positions migrate.
+     * @param migrationInterval Number of iterations between migrations.
+     */
+    public IslandPSO(PSO[] islands, Topology migration, int migrationInterval)
+    {
+        if (islands.length == 0)
+            throw new IllegalArgumentException("There must be at least one island.");
+        if (migrationInterval < 1)
+            throw new IllegalArgumentException("Migration interval must be at least 1.");
+
+        this.islands = islands;
+        this.migration = migration;
+        this.migrationInterval = migrationInterval;
+
+        representatives = new Particle[islands.length];
+        for (int k = 0; k < islands.length; k++)
+        {
+            int dimensions = islands[k].getParticles()[0].getValues().length;
+            representatives[k] = new Particle(dimensions, 0, 0);
+        }
+        migration.setPopulation(representatives);
+    }
+
+    /**
+     * Runs every island to the end, migrating every migrationInterval
+     * iterations, then finalises each island.
+     */
+    public void optimise()
+    {
+        int maxIterations = 0;
+        for (int k = 0; k < islands.length; k++)
+        {
+            if (islands[k].isAsynchronous())
+                throw new IllegalStateException("Islands cannot be asynchronous.");
+            maxIterations = Math.max(maxIterations, islands[k].getMaxIterations());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(islands.length);
+        try
+        {
+            run(executor, 0, 0);
+            for (int i = 1; i <= maxIterations; i += migrationInterval)
+            {
+                int last = Math.min(i + migrationInterval - 1, maxIterations);
+                run(executor, i, last);
+                if (last < maxIterations)
+                    migrate();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        for (int k = 0; k < islands.length; k++)
+        {
+            islands[k].finish();
+        }
+    }
+
+    // runs iterations first..last of every island in parallel, or starts
+    // them if first is 0
+    private void run(ExecutorService executor, final int first, final int last)
+    {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(islands.length);
+        for (int k = 0; k < islands.length; k++)
+        {
+            final PSO island = islands[k];
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    if (first == 0)
+                    {
+                        island.start();
+                        return null;
+                    }
+                    int end = Math.min(last, island.getMaxIterations());
+                    for (int i = first; i <= end; i++)
+                    {
+                        island.iterate(i);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try
+        {
+            for (Future<Void> future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Island optimisation interrupted.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Island optimisation failed.", e.getCause());
+        }
+    }
+
+    // sends each island the best position in its migration neighbourhood,
+    // unless that is its own
+    private void migrate()
+    {
+        for (int k = 0; k < islands.length; k++)
+        {
+            Particle best = islands[k].getBestParticle();
+            representatives[k].replace(best.getBestValues(), best.getBestFitness());
+        }
+        migration.update();
+
+        for (int k = 0; k < islands.length; k++)
+        {
+            double[] migrant = migration.getBest(k);
+            for (int l = 0; l < representatives.length; l++)
+            {
+                if (l != k && representatives[l].getValues() == migrant)
+                {
+                    islands[k].immigrate(migrant, representatives[l].getFitness());
+                }
+            }
+        }
+    }
+
+    public PSO[] getIslands()
+    {
+        return islands;
+    }
+
+    /**
+     * @return The island that found the best position.
+     */
+    public PSO getBestIsland()
+    {
+        int best = 0;
+        for (int k = 1; k < islands.length; k++)
+        {
+            if (islands[k].getBestParticle().getBestFitness() < islands[best].getBestParticle().getBestFitness())
+                best = k;
+        }
+        return islands[best];
+    }
+}
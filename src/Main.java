@@ -1,10 +1,11 @@
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.net.ServerSocket;
 import java.util.HashMap;
 import java.util.Scanner;
+import javax.management.JMException;
 
 /**
  *
@@ -110,11 +111,10 @@ public class Main
 	String outFilename = filename + ".results";
         
         DataSet data = null;
-        PrintWriter writer = null;
+        TrainingLog log = null;
         try
         {
-            data = new DataSet(new File(filename));
-            writer = new PrintWriter(outFilename);
+            data = DataSet.load(new File(filename));
         } catch (IOException ex)
         {
             System.out.println("Error reading file: " + ex.getMessage());
@@ -123,13 +123,24 @@ public class Main
         {
             System.exit(1);
         }
+        try
+        {
+            log = new TrainingLog(new FileOutputStream(outFilename), TrainingLog.Format.RESULTS);
+        } catch (IOException ex)
+        {
+            // train anyway, without the full output
+            System.out.println("Error writing results: " + ex.getMessage());
+        }
         
         int maxIterations = readInteger("How many iterations? (Stopping condition)", 1, Integer.MAX_VALUE);
         int numHiddenUnits = readInteger("How many hidden units?", 1, Integer.MAX_VALUE);
         Function activationFunction = readObject("What activation function to use?",
                 new Function[]{
                     new Function.Sigmoid(),
-                    new Function.Linear()
+                    new Function.Linear(),
+                    new Function.FastSigmoid(),
+                    new Function.Tanh(),
+                    new Function.FastTanh()
                 }
         );
         Topology topology;
@@ -158,6 +169,15 @@ public class Main
         int numParticles = readInteger("How many particles?", 1, Integer.MAX_VALUE);
         double lowerBound = readNumber("What is the lower bound for particle initialisation?", Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY),
                 upperBound= readNumber("What is the upper bound for particle initialisation?", Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        int numThreads = readInteger("How many worker threads? (" + Runtime.getRuntime().availableProcessors() + " processors available)", 1, Integer.MAX_VALUE);
+        int stagnation = readInteger("Stop after how many iterations without improvement? (0 to never)", 0, Integer.MAX_VALUE);
+        int precision = readChoice("What precision to train in?",
+                new String[]{
+                    "Double",
+                    "Single (halves the data set's memory; only faster with FastSigmoid or FastTanh)"
+                }
+        );
+        int port = readInteger("Serve predictions on which port once trained? (0 for no)", 0, 65535);
         
         // Testing the PSO.
         /*TestPSO test = new TestPSO(maxIterations, topology, w, c1, c2, vmax, numParticles, lowerBound, upperBound);
@@ -165,11 +185,45 @@ public class Main
         test.optimise();*/
         
         PSONN pso = new PSONN(data, maxIterations, numHiddenUnits, activationFunction, topology, w, c1, c2, vmax, numParticles, lowerBound, upperBound);
-        pso.setWriter(writer);
+        pso.setLog(log);
+        pso.setNumThreads(numThreads);
+        try
+        {
+            // lets JConsole or VisualVM watch the training
+            pso.getMetrics().register(new File(filename).getName());
+        }
+        catch (JMException ex)
+        {
+            System.out.println("Metrics not available: " + ex.getMessage());
+        }
+        if (stagnation > 0)
+            pso.setStoppingCondition(new StoppingCondition.Stagnation(stagnation, 0));
+        if (precision == 1)
+        {
+            pso.setSinglePrecision(true);
+            if (!(activationFunction instanceof Function.FastSigmoid || activationFunction instanceof Function.FastTanh))
+                System.out.println("Note: " + activationFunction.getClass().getSimpleName() + " is slower in single precision; FastSigmoid or FastTanh train faster.");
+        }
         NeuralNetwork.Statistic tstat;
         
         System.out.println("\nTraining...");
         pso.optimise();
+        boolean written = false;
+        if (log != null)
+        {
+            try
+            {
+                log.close();
+                written = true;
+            }
+            catch (IOException ex)
+            {
+                System.out.println("Error writing results: " + ex.getMessage());
+            }
+        }
+        
+        if (pso.getStoppedBy() != null)
+            System.out.printf("Stopped after %d iterations: %s.\n", pso.getIterations(), pso.getStoppedBy());
         
         tstat = pso.getTrainingStatistic();
         System.out.println("Training result:");
@@ -179,6 +233,50 @@ public class Main
         System.out.println("Test result:");
         System.out.printf("\tMSE: %g\n\tAccuracy: %.1f%%\n", tstat.getMeanSquaredError(), tstat.getAccuracy()*100);
 
-	System.out.println("Full output written to " + outFilename + ".");
+        if (written)
+            System.out.println("Full output written to " + outFilename + ".");
+        
+        if (port > 0)
+            serve(pso.getNeuralNetwork(), port);
+    }
+    
+    // serves predictions until killed, reporting every ten seconds
+    private static void serve(NeuralNetwork network, int port)
+    {
+        final PredictionServer server = new PredictionServer(network, 64, 0);
+        Thread reporter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        Thread.sleep(10000);
+                        PredictionServer.Statistics stats = server.resetStatistics();
+                        if (stats.getRequests() > 0)
+                            System.out.println(stats);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    // done
+                }
+            }
+        }, "PredictionServer reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+        
+        try
+        {
+            ServerSocket socket = new ServerSocket(port);
+            System.out.println("Serving predictions on port " + socket.getLocalPort() + ".");
+            server.serve(socket);
+        }
+        catch (IOException ex)
+        {
+            System.out.println("Could not serve predictions: " + ex.getMessage());
+        }
     }
 }
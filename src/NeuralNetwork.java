@@ -1,9 +1,22 @@
+
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
- *
+ * A feed-forward network with one hidden layer.
+ * Besides running with weights of its own, set with setWeights, a network
+ * can run with weights passed in, which leaves it untouched, so one network
+ * can evaluate different particles on different threads at once.
  * @author Daniel
  */
 public class NeuralNetwork
 {
+    // Hidden units in a tile of a swarm run, and patterns run through a
+    // tile at a time, chosen to keep a tile's weights and a block's inputs
+    // in the cache together.
+    private static final int SWARM_TILE_WIDTH = 256;
+    private static final int SWARM_BLOCK_SIZE = 64;
+    
     private double[][] inputWeights;
     private double[][] hiddenWeights;
     
@@ -12,6 +25,30 @@ public class NeuralNetwork
     private int numOutputs;
     
     private Function function;
+    
+    // the weights in single precision, when that is in use
+    private boolean singlePrecision = false;
+    private float[][] floatInputWeights;
+    private float[][] floatHiddenWeights;
+    
+    // scratch space for running single patterns
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+    {
+        @Override
+        protected Scratch initialValue()
+        {
+            return new Scratch();
+        }
+    };
+    // scratch space for running data sets
+    private final ThreadLocal<Evaluation> evaluations = new ThreadLocal<Evaluation>()
+    {
+        @Override
+        protected Evaluation initialValue()
+        {
+            return new Evaluation();
+        }
+    };
 
     public NeuralNetwork(int numInputs, int numHiddenUnits, int numOutputs, Function activationFunction)
     {
@@ -49,32 +86,570 @@ public class NeuralNetwork
         }
     }
     
-    /**
-     * Runs the neural network on a data set.
-     * @param dataSet
-     * @return The MSE.
-     */
-    public Statistic run(DataSet dataSet)
+    private class Scratch
+    {
+        private double[] hiddenValues = new double[numHiddenUnits];
+        private double[] outputValues = new double[numOutputs];
+        private float[] floatInput = new float[numInputs-1];
+        private float[] floatHiddenValues = new float[numHiddenUnits];
+        private float[] floatOutputValues = new float[numOutputs];
+    }
+    
+    // Scratch space and running totals for one run over a data set. Each
+    // thread keeps its own and reuses it from run to run, so runs on
+    // different threads share nothing and short runs allocate nothing. The
+    // weights are kept a row at a time, as the inner loops run fastest over
+    // whole arrays.
+    private class Evaluation
     {
-        // TODO: This function needs to return more than just the MSE. It needs to return the number of incorrect classifications as well.
-        double MSE = 0;
+        // the weights in use, in the network's precision
+        private double[][] inputWeights, hiddenWeights;
+        private float[][] floatInputWeights, floatHiddenWeights;
+        
+        // rows that weights passed in are copied into, made when first needed
+        private double[][] copiedInputWeights, copiedHiddenWeights;
+        private float[][] copiedFloatInputWeights, copiedFloatHiddenWeights;
+        
+        private double[] hiddenValues = new double[numHiddenUnits];
+        private double[] outputValues = new double[numOutputs];
+        private float[] floatHiddenValues = new float[numHiddenUnits];
+        private float[] floatOutputValues = new float[numOutputs];
+        
+        private double errorSum;
+        private int numCorrect;
+        
+        // starts a run with the network's own weights
+        private Evaluation start()
+        {
+            if (singlePrecision)
+                use(NeuralNetwork.this.floatInputWeights, NeuralNetwork.this.floatHiddenWeights);
+            else
+                use(NeuralNetwork.this.inputWeights, NeuralNetwork.this.hiddenWeights);
+            return this;
+        }
+        
+        // starts a run with the given weights
+        private Evaluation start(double[] weights)
+        {
+            checkLength(weights);
+            if (singlePrecision)
+            {
+                if (copiedFloatInputWeights == null)
+                {
+                    copiedFloatInputWeights = new float[numInputs][numHiddenUnits-1];
+                    copiedFloatHiddenWeights = new float[numHiddenUnits][numOutputs];
+                }
+                unpack(weights, copiedFloatInputWeights, copiedFloatHiddenWeights);
+                use(copiedFloatInputWeights, copiedFloatHiddenWeights);
+            }
+            else
+            {
+                if (copiedInputWeights == null)
+                {
+                    copiedInputWeights = new double[numInputs][numHiddenUnits-1];
+                    copiedHiddenWeights = new double[numHiddenUnits][numOutputs];
+                }
+                unpack(weights, copiedInputWeights, copiedHiddenWeights);
+                use(copiedInputWeights, copiedHiddenWeights);
+            }
+            return this;
+        }
+        
+        private void use(double[][] inputWeights, double[][] hiddenWeights)
+        {
+            this.inputWeights = inputWeights;
+            this.hiddenWeights = hiddenWeights;
+            floatInputWeights = null;
+            floatHiddenWeights = null;
+            errorSum = 0;
+            numCorrect = 0;
+        }
         
-        int numCorrect = 0;
-        int numPatterns = dataSet.getSize();
+        private void use(float[][] floatInputWeights, float[][] floatHiddenWeights)
+        {
+            inputWeights = null;
+            hiddenWeights = null;
+            this.floatInputWeights = floatInputWeights;
+            this.floatHiddenWeights = floatHiddenWeights;
+            errorSum = 0;
+            numCorrect = 0;
+        }
         
-        for (int p = 0; p < numPatterns; p++)
+        // Adds each pattern's squared error to errorSum, and counts the
+        // correctly classified patterns in numCorrect.
+        private void accumulate(DataSet dataSet)
         {
-            DataSet.Pattern pattern = dataSet.getPattern(p);
+            boolean single = floatInputWeights != null;
+            if (dataSet.isSinglePrecision() != single)
+                throw new IllegalArgumentException("The data set is not in the network's precision.");
+            
+            int numPatterns = dataSet.getSize();
             
-            double[] output = run(pattern.getInputs());
+            // same tolerance as closeEnough(output, expected, 0.3f)
+            double delta = 0.3f;
+            delta *= delta;
             
-            MSE += meanSquared(output, pattern.getOutput());
+            double[] inputs = dataSet.getInputData();
+            float[] floatInputs = dataSet.getFloatInputData();
+            int[] outputs = dataSet.getOutputData();
+            int stride = dataSet.getNumInputs();
             
-            if (closeEnough(output, pattern.getOutput(), 0.3f))
-                numCorrect++;
+            for (int p = 0; p < numPatterns; p++)
+            {
+                int row = dataSet.getRow(p);
+                int target = outputs[row];
+                
+                if (single)
+                {
+                    run(floatInputWeights, floatHiddenWeights, floatInputs, row*stride,
+                            floatHiddenValues, floatOutputValues);
+                    for (int k = 0; k < numOutputs; k++)
+                    {
+                        outputValues[k] = floatOutputValues[k];
+                    }
+                }
+                else
+                {
+                    run(inputWeights, hiddenWeights, inputs, row*stride, hiddenValues, outputValues);
+                }
+                
+                double sum = 0;
+                boolean correct = true;
+                for (int k = 0; k < numOutputs; k++)
+                {
+                    double temp = outputValues[k] - (k == target ? 1 : 0);
+                    sum += temp * temp;
+                    if (temp > delta) correct = false;
+                }
+                
+                errorSum += sum / numOutputs;
+                if (correct)
+                    numCorrect++;
+            }
+        }
+        
+        // runs a data set held on disk, a block at a time
+        private void accumulate(ChunkedDataSet dataSet)
+                throws IOException
+        {
+            ChunkedDataSet.Reader reader = dataSet.open();
+            try
+            {
+                DataSet block;
+                while ((block = reader.next()) != null)
+                {
+                    if (floatInputWeights != null)
+                        block = DataSet.convert(true, block)[0];
+                    accumulate(block);
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        
+        private Statistic getStatistic(int numPatterns)
+        {
+            return new Statistic(errorSum / (double)numPatterns, (double)numCorrect/(double)numPatterns);
         }
+    }
+    
+    // Running totals for a run of many sets of weights over a data set at
+    // once, much like a blocked matrix multiply. The sets are split into
+    // tiles, and each tile's input to hidden weights are stacked side by
+    // side, a row per input, so an input multiplies one long row for the
+    // whole tile. Patterns are run a block at a time through each tile in
+    // turn, so the block's inputs and the tile's weights both stay in the
+    // cache. The hidden to output weights are kept apart, as each set's
+    // outputs depend only on its own hidden units. Each set's sums are built
+    // up in the same order as in Evaluation, so the results are the same as
+    // running them one by one.
+    private class SwarmEvaluation
+    {
+        private Tile[] tiles;
+        private boolean single;
         
-        return new Statistic(MSE / (double)numPatterns, (double)numCorrect/(double)numPatterns);
+        private double[] errorSum;
+        private int[] numCorrect;
+        
+        private SwarmEvaluation(double[][] weights)
+        {
+            for (double[] w : weights)
+            {
+                checkLength(w);
+            }
+            single = singlePrecision;
+            
+            int perTile = Math.max(1, SWARM_TILE_WIDTH / (numHiddenUnits-1));
+            tiles = new Tile[(weights.length + perTile - 1) / perTile];
+            for (int t = 0; t < tiles.length; t++)
+            {
+                int first = t*perTile;
+                tiles[t] = new Tile(weights, first, Math.min(first + perTile, weights.length));
+            }
+            errorSum = new double[weights.length];
+            numCorrect = new int[weights.length];
+        }
+        
+        private void accumulate(DataSet dataSet)
+        {
+            if (dataSet.isSinglePrecision() != single)
+                throw new IllegalArgumentException("The data set is not in the network's precision.");
+            
+            int numPatterns = dataSet.getSize();
+            
+            // same tolerance as closeEnough(output, expected, 0.3f)
+            double delta = 0.3f;
+            delta *= delta;
+            
+            double[] inputs = dataSet.getInputData();
+            float[] floatInputs = dataSet.getFloatInputData();
+            int[] outputs = dataSet.getOutputData();
+            int stride = dataSet.getNumInputs();
+            
+            // locals, as in Tile.run
+            double[] errorSum = this.errorSum;
+            int[] numCorrect = this.numCorrect;
+            int numOutputs = NeuralNetwork.this.numOutputs;
+            
+            for (int start = 0; start < numPatterns; start += SWARM_BLOCK_SIZE)
+            {
+                int end = Math.min(start + SWARM_BLOCK_SIZE, numPatterns);
+                for (Tile tile : tiles)
+                {
+                    double[] outputValues = tile.outputValues;
+                    float[] floatOutputValues = tile.floatOutputValues;
+                    int count = tile.count, first = tile.first;
+                    for (int n = start; n < end; n++)
+                    {
+                        int row = dataSet.getRow(n);
+                        int target = outputs[row];
+                        
+                        if (single)
+                        {
+                            tile.run(floatInputs, row*stride);
+                            for (int k = 0; k < outputValues.length; k++)
+                            {
+                                outputValues[k] = floatOutputValues[k];
+                            }
+                        }
+                        else
+                        {
+                            tile.run(inputs, row*stride);
+                        }
+                        
+                        for (int p = 0; p < count; p++)
+                        {
+                            double sum = 0;
+                            boolean correct = true;
+                            for (int k = 0; k < numOutputs; k++)
+                            {
+                                double temp = outputValues[p*numOutputs + k] - (k == target ? 1 : 0);
+                                sum += temp * temp;
+                                if (temp > delta) correct = false;
+                            }
+                            
+                            errorSum[first + p] += sum / numOutputs;
+                            if (correct)
+                                numCorrect[first + p]++;
+                        }
+                    }
+                }
+            }
+        }
+        
+        // runs a data set held on disk, a block at a time
+        private void accumulate(ChunkedDataSet dataSet)
+                throws IOException
+        {
+            ChunkedDataSet.Reader reader = dataSet.open();
+            try
+            {
+                DataSet block;
+                while ((block = reader.next()) != null)
+                {
+                    if (single)
+                        block = DataSet.convert(true, block)[0];
+                    accumulate(block);
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        
+        private Statistic[] getStatistics(int numPatterns)
+        {
+            Statistic[] statistics = new Statistic[errorSum.length];
+            for (int p = 0; p < statistics.length; p++)
+            {
+                statistics[p] = new Statistic(errorSum[p] / (double)numPatterns, (double)numCorrect[p]/(double)numPatterns);
+            }
+            return statistics;
+        }
+    }
+    
+    // The stacked weights of some of the sets in a SwarmEvaluation, with
+    // scratch space for running them.
+    private class Tile
+    {
+        private int first, count;
+        private double[][] inputWeights;
+        private double[][][] hiddenWeights;
+        private float[][] floatInputWeights;
+        private float[][][] floatHiddenWeights;
+        
+        private double[] hiddenValues, outputValues, sums;
+        private float[] floatHiddenValues, floatOutputValues, floatSums;
+        
+        // stacks weights[first] to weights[end-1]
+        private Tile(double[][] weights, int first, int end)
+        {
+            this.first = first;
+            count = end - first;
+            int hidden = numHiddenUnits-1;
+            int width = count*hidden;
+            
+            if (singlePrecision)
+            {
+                floatInputWeights = new float[numInputs][width];
+                floatHiddenWeights = new float[count][numHiddenUnits][numOutputs];
+                float[][] rows = new float[numInputs][hidden];
+                for (int p = 0; p < count; p++)
+                {
+                    unpack(weights[first + p], rows, floatHiddenWeights[p]);
+                    for (int i = 0; i < numInputs; i++)
+                        System.arraycopy(rows[i], 0, floatInputWeights[i], p*hidden, hidden);
+                }
+                floatHiddenValues = new float[width];
+                floatOutputValues = new float[count*numOutputs];
+                floatSums = new float[numOutputs];
+            }
+            else
+            {
+                inputWeights = new double[numInputs][width];
+                hiddenWeights = new double[count][numHiddenUnits][numOutputs];
+                double[][] rows = new double[numInputs][hidden];
+                for (int p = 0; p < count; p++)
+                {
+                    unpack(weights[first + p], rows, hiddenWeights[p]);
+                    for (int i = 0; i < numInputs; i++)
+                        System.arraycopy(rows[i], 0, inputWeights[i], p*hidden, hidden);
+                }
+                hiddenValues = new double[width];
+                sums = new double[numOutputs];
+            }
+            outputValues = new double[count*numOutputs];
+        }
+        
+        // runs the pattern whose inputs start at input[offset] through
+        // every set of weights in the tile, into outputValues
+        private void run(double[] input, int offset)
+        {
+            // the loops run measurably faster over locals than over fields
+            double[] hiddenValues = this.hiddenValues, outputValues = this.outputValues;
+            double[][] inputWeights = this.inputWeights;
+            double[][][] hiddenWeights = this.hiddenWeights;
+            double[] sums = this.sums;
+            int numInputs = NeuralNetwork.this.numInputs, numOutputs = NeuralNetwork.this.numOutputs;
+            int count = this.count;
+            int hidden = numHiddenUnits-1;
+            int width = hiddenValues.length;
+            Arrays.fill(hiddenValues, 0);
+            Arrays.fill(outputValues, 0);
+            
+            // Do input layer -> hidden layer, for the whole tile at once
+            for (int i = 0; i < numInputs-1; i++)
+            {
+                double x = input[offset + i];
+                double[] row = inputWeights[i];
+                for (int j = 0; j < width; j++)
+                {
+                    hiddenValues[j] += x * row[j];
+                }
+            }
+            double[] bias = inputWeights[numInputs-1];
+            for (int j = 0; j < width; j++)
+            {
+                hiddenValues[j] -= bias[j];
+            }
+            function.apply(hiddenValues, 0, width);
+            
+            // Do hidden layer -> output layer, a set of weights at a time,
+            // each summed from zero as in Evaluation
+            for (int p = 0; p < count; p++)
+            {
+                double[][] rows = hiddenWeights[p];
+                Arrays.fill(sums, 0);
+                for (int j = 0; j < hidden; j++)
+                {
+                    double h = hiddenValues[p*hidden + j];
+                    double[] row = rows[j];
+                    for (int k = 0; k < numOutputs; k++)
+                    {
+                        sums[k] += h * row[k];
+                    }
+                }
+                double[] row = rows[hidden]; // the bias unit, fixed at -1
+                for (int k = 0; k < numOutputs; k++)
+                {
+                    sums[k] += -1 * row[k];
+                }
+                System.arraycopy(sums, 0, outputValues, p*numOutputs, numOutputs);
+            }
+            function.apply(outputValues, 0, outputValues.length);
+        }
+        
+        // the same, in single precision, into floatOutputValues
+        private void run(float[] input, int offset)
+        {
+            float[] hiddenValues = this.floatHiddenValues, outputValues = this.floatOutputValues;
+            float[][] inputWeights = this.floatInputWeights;
+            float[][][] hiddenWeights = this.floatHiddenWeights;
+            float[] sums = this.floatSums;
+            int numInputs = NeuralNetwork.this.numInputs, numOutputs = NeuralNetwork.this.numOutputs;
+            int count = this.count;
+            int hidden = numHiddenUnits-1;
+            int width = hiddenValues.length;
+            Arrays.fill(hiddenValues, 0);
+            
+            for (int i = 0; i < numInputs-1; i++)
+            {
+                float x = input[offset + i];
+                float[] row = inputWeights[i];
+                for (int j = 0; j < width; j++)
+                {
+                    hiddenValues[j] += x * row[j];
+                }
+            }
+            float[] bias = inputWeights[numInputs-1];
+            for (int j = 0; j < width; j++)
+            {
+                hiddenValues[j] -= bias[j];
+            }
+            function.apply(hiddenValues, 0, width);
+            
+            for (int p = 0; p < count; p++)
+            {
+                float[][] rows = hiddenWeights[p];
+                Arrays.fill(sums, 0);
+                for (int j = 0; j < hidden; j++)
+                {
+                    float h = hiddenValues[p*hidden + j];
+                    float[] row = rows[j];
+                    for (int k = 0; k < numOutputs; k++)
+                    {
+                        sums[k] += h * row[k];
+                    }
+                }
+                float[] row = rows[hidden];
+                for (int k = 0; k < numOutputs; k++)
+                {
+                    sums[k] += -1 * row[k];
+                }
+                System.arraycopy(sums, 0, outputValues, p*numOutputs, numOutputs);
+            }
+            function.apply(outputValues, 0, outputValues.length);
+        }
+    }
+    
+    /**
+     * Runs the neural network on a data set.
+     * Every pattern is evaluated into the same scratch buffers, and the MSE
+     * and accuracy are gathered in the same pass, so nothing is allocated
+     * per pattern. Gives the same results as calling run(double[]) on each
+     * pattern.
+     * @param dataSet
+     * @return The MSE and the fraction of correctly classified patterns.
+     */
+    public Statistic run(DataSet dataSet)
+    {
+        Evaluation evaluation = evaluations.get().start();
+        evaluation.accumulate(dataSet);
+        return evaluation.getStatistic(dataSet.getSize());
+    }
+    
+    /**
+     * Runs the neural network on a data set with the given weights instead
+     * of its own, which are left as they are. Nothing in the network
+     * changes, so it can run different weights on different threads at once.
+     * @param weights Weights in the layout setWeights describes.
+     * @param dataSet
+     * @return The MSE and the fraction of correctly classified patterns.
+     */
+    public Statistic run(double[] weights, DataSet dataSet)
+    {
+        Evaluation evaluation = evaluations.get().start(weights);
+        evaluation.accumulate(dataSet);
+        return evaluation.getStatistic(dataSet.getSize());
+    }
+    
+    /**
+     * Runs the neural network on a data set held on disk, a block at a time.
+     * The MSE and accuracy are the same as if the whole set were run at once.
+     * @param dataSet
+     * @return The MSE and the fraction of correctly classified patterns.
+     * @throws IOException If the data set cannot be read.
+     */
+    public Statistic run(ChunkedDataSet dataSet)
+            throws IOException
+    {
+        Evaluation evaluation = evaluations.get().start();
+        evaluation.accumulate(dataSet);
+        return evaluation.getStatistic(dataSet.getSize());
+    }
+    
+    /**
+     * Runs the neural network on a data set held on disk with the given
+     * weights, leaving the network untouched as run(double[], DataSet) does.
+     * @param weights Weights in the layout setWeights describes.
+     * @param dataSet
+     * @return The MSE and the fraction of correctly classified patterns.
+     * @throws IOException If the data set cannot be read.
+     */
+    public Statistic run(double[] weights, ChunkedDataSet dataSet)
+            throws IOException
+    {
+        Evaluation evaluation = evaluations.get().start(weights);
+        evaluation.accumulate(dataSet);
+        return evaluation.getStatistic(dataSet.getSize());
+    }
+    
+    /**
+     * Runs the neural network on a data set with many sets of weights, such
+     * as every particle in a swarm, in one pass over the data. Each pattern
+     * is read once and run through all of them, rather than once per set of
+     * weights, which matters most for data sets too big for the cache. Gives
+     * the same results as calling run(double[], DataSet) for each set.
+     * @param weights Sets of weights in the layout setWeights describes.
+     * @param dataSet
+     * @return The MSE and the fraction of correctly classified patterns, for
+     * each set of weights.
+     */
+    public Statistic[] run(double[][] weights, DataSet dataSet)
+    {
+        SwarmEvaluation evaluation = new SwarmEvaluation(weights);
+        evaluation.accumulate(dataSet);
+        return evaluation.getStatistics(dataSet.getSize());
+    }
+    
+    /**
+     * Runs the neural network on a data set held on disk with many sets of
+     * weights, reading the data once for all of them.
+     * @param weights Sets of weights in the layout setWeights describes.
+     * @param dataSet
+     * @return The MSE and the fraction of correctly classified patterns, for
+     * each set of weights.
+     * @throws IOException If the data set cannot be read.
+     */
+    public Statistic[] run(double[][] weights, ChunkedDataSet dataSet)
+            throws IOException
+    {
+        SwarmEvaluation evaluation = new SwarmEvaluation(weights);
+        evaluation.accumulate(dataSet);
+        return evaluation.getStatistics(dataSet.getSize());
     }
     
     public static boolean closeEnough(double[] a, double[] b, double delta)
@@ -97,48 +672,172 @@ public class NeuralNetwork
      */
     public double[] run(double[] input)
     {
-        double[] hiddenValues = new double[numHiddenUnits];
-        hiddenValues[numHiddenUnits-1] = -1; // last one is bias unit
+        return run(input, new double[numOutputs]);
+    }
+    
+    /**
+     * Runs the neural network on a single pattern, writing the outputs into
+     * an array of the caller's. Scratch space is kept per thread, so once a
+     * thread has run the network this allocates nothing, and any number of
+     * threads can run it at once as long as the weights are not being set.
+     * @param input
+     * @param output Receives the output values.
+     * @return output.
+     */
+    public double[] run(double[] input, double[] output)
+    {
+        run(input, output, 1);
+        return output;
+    }
+    
+    /**
+     * Runs the neural network on a number of patterns at once, as run(double[],
+     * double[]) does.
+     * @param inputs The patterns' inputs, one pattern after another.
+     * @param outputs Receives the patterns' outputs, one pattern after another.
+     * @param count The number of patterns.
+     */
+    public void run(double[] inputs, double[] outputs, int count)
+    {
+        if (inputs.length < count*(numInputs-1) || outputs.length < count*numOutputs)
+            throw new IllegalArgumentException("Arrays too short for " + count + " patterns.");
+        
+        Scratch s = scratch.get();
+        for (int n = 0; n < count; n++)
+        {
+            int in = n*(numInputs-1), out = n*numOutputs;
+            if (singlePrecision)
+            {
+                for (int i = 0; i < numInputs-1; i++)
+                {
+                    s.floatInput[i] = (float)inputs[in + i];
+                }
+                run(floatInputWeights, floatHiddenWeights, s.floatInput, 0, s.floatHiddenValues, s.floatOutputValues);
+                for (int k = 0; k < numOutputs; k++)
+                {
+                    outputs[out + k] = s.floatOutputValues[k];
+                }
+            }
+            else
+            {
+                run(inputWeights, hiddenWeights, inputs, in, s.hiddenValues, s.outputValues);
+                System.arraycopy(s.outputValues, 0, outputs, out, numOutputs);
+            }
+        }
+    }
+    
+    // Runs the pattern whose inputs start at input[offset] with the given
+    // rows of weights, using hiddenValues as scratch space and writing the
+    // result into outputValues.
+    private void run(double[][] inputWeights, double[][] hiddenWeights,
+            double[] input, int offset, double[] hiddenValues, double[] outputValues)
+    {
+        Arrays.fill(hiddenValues, 0);
+        Arrays.fill(outputValues, 0);
+        
+        // The layers are accumulated a row of weights at a time so that the
+        // inner loops run over contiguous arrays with no branches, which the
+        // JIT can vectorise. Each sum is still built up in input order.
 
         // Do input layer -> hidden layer
-        for (int j = 0; j < numHiddenUnits-1; j++) // -1 for hidden bias unit
+        for (int i = 0; i < numInputs-1; i++)
         {
-            hiddenValues[j] = 0;
-            for (int i = 0; i < numInputs; i++)
+            double x = input[offset + i];
+            double[] row = inputWeights[i];
+            for (int j = 0; j < numHiddenUnits-1; j++) // -1 for hidden bias unit
             {
-                // if it's the last one, it's the bias unit.
-                double x = i == numInputs-1 ? -1 : input[i];
+                hiddenValues[j] += x * row[j];
+            }
+        }
+        // the last input is the bias unit, fixed at -1.
+        double[] bias = inputWeights[numInputs-1];
+        for (int j = 0; j < numHiddenUnits-1; j++)
+        {
+            hiddenValues[j] -= bias[j];
+        }
+        // activations are applied a layer at a time
+        function.apply(hiddenValues, 0, numHiddenUnits-1);
+        hiddenValues[numHiddenUnits-1] = -1; // last one is bias unit
 
-                hiddenValues[j] += x * inputWeights[i][j];
+        // Do hidden layer -> output layer
+        for (int j = 0; j < numHiddenUnits; j++)
+        {
+            double h = hiddenValues[j];
+            double[] row = hiddenWeights[j];
+            for (int k = 0; k < numOutputs; k++)
+            {
+                outputValues[k] += h * row[k];
             }
-            hiddenValues[j] = f(hiddenValues[j]);
         }
+        function.apply(outputValues, 0, numOutputs);
+    }
+    
+    // The same as run(double[][], double[][], double[], int, double[],
+    // double[]), in single precision.
+    private void run(float[][] inputWeights, float[][] hiddenWeights,
+            float[] input, int offset, float[] hiddenValues, float[] outputValues)
+    {
+        Arrays.fill(hiddenValues, 0);
+        Arrays.fill(outputValues, 0);
 
-        double[] outputValues = new double[numOutputs];
+        // Do input layer -> hidden layer
+        for (int i = 0; i < numInputs-1; i++)
+        {
+            float x = input[offset + i];
+            float[] row = inputWeights[i];
+            for (int j = 0; j < numHiddenUnits-1; j++)
+            {
+                hiddenValues[j] += x * row[j];
+            }
+        }
+        float[] bias = inputWeights[numInputs-1];
+        for (int j = 0; j < numHiddenUnits-1; j++)
+        {
+            hiddenValues[j] -= bias[j];
+        }
+        function.apply(hiddenValues, 0, numHiddenUnits-1);
+        hiddenValues[numHiddenUnits-1] = -1;
 
         // Do hidden layer -> output layer
-        for (int k = 0; k < numOutputs; k++)
+        for (int j = 0; j < numHiddenUnits; j++)
         {
-            outputValues[k] = 0;
-            for (int j = 0; j < numHiddenUnits; j++)
+            float h = hiddenValues[j];
+            float[] row = hiddenWeights[j];
+            for (int k = 0; k < numOutputs; k++)
             {
-                outputValues[k] += hiddenValues[j] * hiddenWeights[j][k];
+                outputValues[k] += h * row[k];
             }
-            outputValues[k] = f(outputValues[k]);
         }
-        
-        return outputValues;
+        function.apply(outputValues, 0, numOutputs);
     }
     
     /**
      * Set the weights from a particle's vector.
+     * The first (inputs+1)*hidden weights connect the inputs to the hidden
+     * units: a row of hidden unit weights per input, with the bias input
+     * last. The remaining (hidden+1)*outputs connect the hidden units to
+     * the outputs: a row of output weights per hidden unit, with the bias
+     * unit last.
      * @param weights 
      */
     public void setWeights(double[] weights)
+    {
+        checkLength(weights);
+        if (singlePrecision)
+            unpack(weights, floatInputWeights, floatHiddenWeights);
+        else
+            unpack(weights, inputWeights, hiddenWeights);
+    }
+    
+    private void checkLength(double[] weights)
     {
         if (weights.length != getNumWeights())
             throw new IllegalArgumentException("Incorrect number of weights: " + String.format("expect: %d, got: %d", getNumWeights(), weights.length));
-        
+    }
+    
+    // copies weights in setWeights' layout into rows
+    private void unpack(double[] weights, double[][] inputWeights, double[][] hiddenWeights)
+    {
         // set the weights between input and hidden (inputs)*(hidden-1)
         for (int i = 0; i < numInputs; i++)
             System.arraycopy(weights, i*(numHiddenUnits-1),
@@ -150,19 +849,75 @@ public class NeuralNetwork
                     hiddenWeights[j], 0, numOutputs);
     }
     
+    // the same, converting to single precision
+    private void unpack(double[] weights, float[][] inputWeights, float[][] hiddenWeights)
+    {
+        for (int i = 0; i < numInputs; i++)
+        {
+            for (int j = 0; j < numHiddenUnits-1; j++)
+            {
+                inputWeights[i][j] = (float)weights[i*(numHiddenUnits-1) + j];
+            }
+        }
+        for (int j = 0; j < numHiddenUnits; j++)
+        {
+            for (int k = 0; k < numOutputs; k++)
+            {
+                hiddenWeights[j][k] = (float)weights[numInputs*(numHiddenUnits-1) + j*numOutputs + k];
+            }
+        }
+    }
+    
     public int getNumWeights()
     {
         return numInputs*(numHiddenUnits-1) + numHiddenUnits*numOutputs;
     }
     
+    public int getNumInputs()
+    {
+        return numInputs-1;
+    }
+    
+    public int getNumHiddenUnits()
+    {
+        return numHiddenUnits-1;
+    }
     
-    // makes activation function calls look nicer in the code
-    // f(x) instead of function.f(x)
-    private double f(double x)
+    public int getNumOutputs()
     {
-        return function.f(x);
+        return numOutputs;
     }
     
+    public Function getActivationFunction()
+    {
+        return function;
+    }
+    
+    /**
+     * Switches between double precision, the default, and single precision
+     * weights and arithmetic. A single precision network reads half as much
+     * memory per pattern, and can only be run on data sets held in single
+     * precision (see DataSet.convert). It is fastest with FastSigmoid or
+     * FastTanh, since Math.exp only works in double precision. The weights
+     * must be set again after switching.
+     * @param singlePrecision 
+     */
+    public void setSinglePrecision(boolean singlePrecision)
+    {
+        this.singlePrecision = singlePrecision;
+        if (singlePrecision && floatInputWeights == null)
+        {
+            floatInputWeights = new float[numInputs][numHiddenUnits-1];
+            floatHiddenWeights = new float[numHiddenUnits][numOutputs];
+        }
+    }
+    
+    public boolean isSinglePrecision()
+    {
+        return singlePrecision;
+    }
+    
+    
     /**
      * Calculates the mean squared error between two vectors.
      * @param yHat The estimated values.
@@ -1,5 +1,17 @@
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -18,10 +30,48 @@ public abstract class PSO
     
     private Topology topology;
     
+    private int dimensions;
+    private double lowerBound, upperBound;
+    // the master generator, from which each particle's own is split
+    private Rng rng;
+    
+    private double[] fitness;
+    private double[][] positions;
+    
+    // particles with the best fitness and the best personal best so far,
+    // tracked as the fitnesses come in; volatile, as asynchronous workers
+    // update them while other threads read them
+    private volatile int currentBest = 0;
+    private volatile int best = 0;
+    
+    private int numThreads = 1;
+    private ExecutorService executor = null;
+    private boolean asynchronous = false;
+    // the asynchronous run in progress, if any
+    private volatile AsynchronousRun running = null;
+    
+    private StoppingCondition stoppingCondition = null;
+    private StoppingCondition stoppedBy = null;
+    // iterations finished so far
+    private int iterations = 0;
+    
+    private Checkpoint checkpoint = null;
+    private int checkpointInterval = 0;
+    // the checkpoint start() should restore instead of evaluating
+    private Checkpoint resumeFrom = null;
+    
+    // particle fitness evaluations so far
+    private final AtomicLong evaluations = new AtomicLong();
+    
+    private final PSOMetrics metrics = new PSOMetrics(this);
+    
     protected PrintWriter writer = null;
     
     /**
      * Gets the fitness of a particular vector.
+     * When more than one thread is used this may be called concurrently for
+     * different particles, so implementations must not share mutable state
+     * between calls.
      * @param v The vector to calculate the fitness of.
      * @return The fitness of the vector.
      */
@@ -29,17 +79,311 @@ public abstract class PSO
     
     protected abstract void outputStatistics(int i, double[] values);
     
+    /**
+     * Outputs the statistics for an iteration, given the particle with the
+     * best fitness in that iteration. By default this passes its position on
+     * to outputStatistics(int, double[]); subclasses can override it to make
+     * use of the fitness already calculated for it.
+     * @param i The iteration.
+     * @param best The best particle of the iteration.
+     */
+    protected void outputStatistics(int i, Particle best)
+    {
+        outputStatistics(i, best.getValues());
+    }
+    
     protected abstract void finalise(double[] values);
     
+    /**
+     * Called before the particles are evaluated in each iteration, with i = 0
+     * for the initial evaluation. Does nothing by default.
+     * @param i The iteration about to be evaluated.
+     */
+    protected void beginIteration(int i)
+    {
+    }
+    
     // update each particle's fitness using the overridden getFitness function.
     private void updateFitness()
     {
         for (int j = 0; j < particles.length; j++)
         {
-            double fitness = getFitness(particles[j].getValues());
-            particles[j].updateFitness(fitness);
+            positions[j] = particles[j].getValues();
+        }
+        long time = System.nanoTime();
+        evaluate(positions, fitness);
+        evaluations.addAndGet(particles.length);
+        metrics.evaluated(System.nanoTime() - time);
+        time = System.nanoTime();
+        
+        // personal bests are always updated in particle order, so the outcome
+        // does not depend on how the evaluations were scheduled.
+        currentBest = 0;
+        for (int j = 0; j < particles.length; j++)
+        {
+            particles[j].updateFitness(fitness[j]);
+            topology.report(j);
+            
+            if (fitness[j] < fitness[currentBest])
+                currentBest = j;
+            if (particles[j].getBestFitness() < particles[best].getBestFitness())
+                best = j;
         }
         topology.update();
+        metrics.topologyUpdated(System.nanoTime() - time);
+    }
+    
+    /**
+     * Finds the particle with the best personal best again. Must be called
+     * after changing personal best fitnesses other than through
+     * updateFitness, e.g. with Particle.setBestFitness.
+     */
+    protected void refreshBestParticle()
+    {
+        best = 0;
+        for (int i = 1; i < particles.length; i++)
+        {
+            if (particles[i].getBestFitness() < particles[best].getBestFitness())
+                best = i;
+        }
+    }
+    
+    /**
+     * Calculates the fitness of some of a number of positions on the calling
+     * thread. Calls getFitness for each position by default; subclasses that
+     * can score many positions faster together can override it.
+     * @param positions The positions to evaluate.
+     * @param results Receives the fitness of each position.
+     * @param from The first position to evaluate, inclusive.
+     * @param to The last position to evaluate, exclusive.
+     */
+    protected void evaluate(double[][] positions, double[] results, int from, int to)
+    {
+        for (int j = from; j < to; j++)
+        {
+            results[j] = getFitness(positions[j]);
+        }
+    }
+    
+    /**
+     * Calculates the fitness of a number of positions, spreading them over
+     * the worker pool if more than one thread is in use.
+     * @param positions The positions to evaluate, usually one per particle.
+     * @param results Receives the fitness of each position.
+     */
+    protected void evaluate(final double[][] positions, final double[] results)
+    {
+        if (executor == null)
+        {
+            evaluate(positions, results, 0, positions.length);
+            return;
+        }
+        
+        int chunk = (positions.length + numThreads - 1) / numThreads;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numThreads);
+        for (int start = 0; start < positions.length; start += chunk)
+        {
+            final int from = start;
+            final int to = Math.min(start + chunk, positions.length);
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    evaluate(positions, results, from, to);
+                    return null;
+                }
+            });
+        }
+        
+        try
+        {
+            for (Future<Void> future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Fitness evaluation interrupted.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Fitness evaluation failed.", e.getCause());
+        }
+    }
+    
+    /**
+     * Runs the asynchronous PSO after the initial evaluation. Each worker
+     * repeatedly takes the next particle that no other worker has, moves it
+     * towards the best position published in its neighbourhood, evaluates
+     * it, and publishes its personal best if it improved. Nothing waits for
+     * the rest of the swarm.
+     */
+    private class AsynchronousRun implements Callable<Void>
+    {
+        private final long budget = (long)maxIterations * particles.length;
+        private final long start = evaluations.get();
+        
+        // evaluations handed out to workers so far
+        private final AtomicLong claimed = new AtomicLong();
+        // the next particle to try, modulo the swarm size
+        private final AtomicLong next = new AtomicLong();
+        // 1 for each particle being moved by a worker
+        private final AtomicIntegerArray busy = new AtomicIntegerArray(particles.length);
+        
+        // guards the swarm's bests, so best always names the particle whose
+        // personal best is in swarmBest
+        private final Object lock = new Object();
+        // a copy of the best personal best in the swarm
+        private volatile Topology.Slot swarmBest = null;
+        // the particle with the best fitness evaluated since the statistics
+        // were last output, or -1
+        private int latestBest = -1;
+        private double latestFitness;
+        
+        // iterations' worth of evaluations whose statistics have been output
+        private int reported = 0;
+        
+        private AsynchronousRun()
+        {
+            for (int j = 0; j < particles.length; j++)
+            {
+                double[] best = particles[j].getBestValues().clone();
+                topology.publish(j, particles[j].getBestFitness(), best);
+                evaluated(j, particles[j].getFitness(), particles[j].getBestFitness(), best);
+            }
+            currentBest = latestBest;
+            latestBest = -1;
+        }
+        
+        // Records an evaluation of particle j, and its personal best if it
+        // improved (values is then a copy that is never changed), keeping
+        // best and the next currentBest up to date.
+        private void evaluated(int j, double fitness, double bestFitness, double[] values)
+        {
+            synchronized (lock)
+            {
+                if (latestBest < 0 || fitness < latestFitness)
+                {
+                    latestBest = j;
+                    latestFitness = fitness;
+                }
+                if (values != null && (swarmBest == null || bestFitness < swarmBest.fitness))
+                {
+                    swarmBest = new Topology.Slot(bestFitness, values);
+                    best = j;
+                }
+            }
+        }
+        
+        @Override
+        public Void call()
+        {
+            try
+            {
+                while (claimed.getAndIncrement() < budget)
+                {
+                    int j;
+                    do
+                    {
+                        j = (int)(next.getAndIncrement() % particles.length);
+                    }
+                    while (!busy.compareAndSet(j, 0, 1));
+                    
+                    Particle particle = particles[j];
+                    double previous = particle.getBestFitness();
+                    particle.update(w, c1, c2, vmax, topology.getPublishedBest(j));
+                    double result = getFitness(particle.getValues());
+                    particle.updateFitness(result);
+                    double[] best = null;
+                    if (result < previous)
+                    {
+                        best = particle.getBestValues().clone();
+                        topology.publish(j, result, best);
+                    }
+                    evaluated(j, result, result, best);
+                    busy.set(j, 0);
+                    
+                    long done = evaluations.incrementAndGet() - start;
+                    if (done % particles.length == 0)
+                        report(done / particles.length);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // stop the other workers too
+                claimed.set(budget);
+                throw e;
+            }
+            return null;
+        }
+        
+        // outputs the statistics for every iteration up to i not yet output,
+        // in order, whichever worker gets here first
+        private synchronized void report(long i)
+        {
+            synchronized (lock)
+            {
+                if (latestBest >= 0)
+                    currentBest = latestBest;
+                latestBest = -1;
+            }
+            while (reported < i && stoppedBy == null)
+            {
+                reported++;
+                long time = System.nanoTime();
+                outputStatistics(reported, swarmBest.values);
+                metrics.iterated(reported, 0, System.nanoTime() - time);
+                if (isStopping(reported))
+                {
+                    claimed.set(budget);
+                }
+            }
+        }
+    }
+    
+    private void optimiseAsynchronously()
+    {
+        AsynchronousRun run = new AsynchronousRun();
+        running = run;
+        try
+        {
+            if (executor == null)
+            {
+                run.call();
+            }
+            else
+            {
+                int workers = Math.min(numThreads, particles.length);
+                for (Future<Void> future : executor.invokeAll(Collections.nCopies(workers, run)))
+                {
+                    future.get();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Fitness evaluation interrupted.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Fitness evaluation failed.", e.getCause());
+        }
+        finally
+        {
+            running = null;
+        }
+        
+        currentBest = 0;
+        for (int j = 1; j < particles.length; j++)
+        {
+            if (particles[j].getFitness() < particles[currentBest].getFitness())
+                currentBest = j;
+        }
+        refreshBestParticle();
     }
 
     /**
@@ -65,15 +409,49 @@ public abstract class PSO
         this.c2 = c2;
         this.vmax = vmax;
         this.maxIterations = maxIterations;
+        this.dimensions = dimensions;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
         
         particles = new Particle[numParticles];
+        createParticles(new Rng());
         
+        fitness = new double[numParticles];
+        positions = new double[numParticles][];
+    }
+    
+    private void createParticles(Rng rng)
+    {
+        this.rng = rng;
         for (int i = 0; i < particles.length; i++)
         {
-            particles[i] = new Particle(dimensions, lowerBound, upperBound);
+            particles[i] = new Particle(dimensions, lowerBound, upperBound, rng.split());
         }
         
         topology.setPopulation(particles);
+        currentBest = 0;
+        best = 0;
+    }
+    
+    /**
+     * Seeds the PSO, so that it finds exactly the same result every time
+     * for the same seed, whatever the number of threads. Each particle draws
+     * from its own generator, split from the seed. The particles are created
+     * again, so this must be called before optimising.
+     * @param seed 
+     */
+    public void setSeed(long seed)
+    {
+        createParticles(new Rng(seed));
+    }
+    
+    /**
+     * @return The generator the particles' generators were split from, for
+     * subclasses that need random numbers of their own.
+     */
+    protected Rng getRng()
+    {
+        return rng;
     }
  
     /**
@@ -81,51 +459,350 @@ public abstract class PSO
      */
     public void optimise()
     {
+        int first = resumeFrom == null ? 1 : resumeFrom.getIteration() + 1;
+        boolean completed = false;
+        try
+        {
+            stoppedBy = null;
+            iterations = first - 1;
+            if (stoppingCondition != null)
+                stoppingCondition.start(this);
+            start();
+
+            // commence particle swarm optimisation!
+            if (asynchronous)
+            {
+                optimiseAsynchronously();
+            }
+            else
+            {
+                for (int i = first; i <= maxIterations; i++)
+                {
+                    iterate(i);
+                    if (checkpoint != null && i % checkpointInterval == 0)
+                        writeCheckpoint(i);
+                    if (isStopping(i))
+                        break;
+                }
+            }
+            completed = true;
+        }
+        finally
+        {
+            resumeFrom = null;
+            // finish() shuts down after a run that completed; this is only
+            // for one that failed
+            if (!completed)
+            {
+                stopWorkers();
+                metrics.finish();
+            }
+        }
+        
+        finish();
+    }
+    
+    /**
+     * Carries on an optimisation from a checkpoint, as if it had never
+     * stopped. The PSO must have been created with the same settings as the
+     * one that wrote the checkpoint.
+     * @param file The checkpoint.
+     * @throws IOException If the checkpoint cannot be read, or is for a
+     * different swarm.
+     */
+    public void resume(File file)
+            throws IOException
+    {
+        if (asynchronous)
+            throw new IllegalStateException("The asynchronous PSO cannot be resumed.");
         
-        // first run to get the initial fitness
-        updateFitness();
+        Checkpoint saved = new Checkpoint(file);
+        saved.read(particles);
+        resumeFrom = saved;
+        optimise();
+    }
+    
+    /**
+     * Starts the optimisation, evaluating the initial positions, or
+     * restoring the swarm when resuming. optimise() is start(), then
+     * iterate(i) for each iteration, then finish(); they are separate so
+     * that several swarms can be stepped together.
+     */
+    protected void start()
+    {
+        if (numThreads > 1 && executor == null)
+            executor = Executors.newFixedThreadPool(numThreads);
+        metrics.start(iterations);
         
-        // commence particle swarm optimisation!
-        for (int i = 1; i <= maxIterations; i++)
+        if (resumeFrom != null)
         {
-            // update each particle's position
-            for (int j = 0; j < particles.length; j++)
+            // the particles were restored by resume(); the bests follow
+            // from them
+            evaluations.set(resumeFrom.getEvaluations());
+            currentBest = 0;
+            for (int j = 1; j < particles.length; j++)
             {
-                particles[j].update(w, c1, c2, vmax, topology.getBest(j));
+                if (particles[j].getFitness() < particles[currentBest].getFitness())
+                    currentBest = j;
             }
-            
-            updateFitness();
-            
-            outputStatistics(i, getCurrentBestParticle().getValues());
+            refreshBestParticle();
+            topology.update();
+            return;
         }
         
+        evaluations.set(0);
+        
+        // first run to get the initial fitness
+        beginIteration(0);
+        updateFitness();
+        metrics.iterated(0, 0, 0);
+    }
+    
+    // a failed checkpoint is reported, but does not stop the optimisation
+    private void writeCheckpoint(int i)
+    {
+        try
+        {
+            checkpoint.write(i, evaluations.get(), particles);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not write checkpoint: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Runs one iteration of the synchronous PSO.
+     * @param i The iteration, from 1 to getMaxIterations().
+     */
+    protected void iterate(int i)
+    {
+        long time = System.nanoTime();
+        // update each particle's position
+        for (int j = 0; j < particles.length; j++)
+        {
+            particles[j].update(w, c1, c2, vmax, topology.getBest(j));
+        }
+        long update = System.nanoTime() - time;
+
+        beginIteration(i);
+        updateFitness();
+
+        time = System.nanoTime();
+        outputStatistics(i, getCurrentBestParticle());
+        metrics.iterated(i, update, System.nanoTime() - time);
+    }
+    
+    /**
+     * Ends the optimisation, stopping the worker threads and finalising the
+     * best position found.
+     */
+    protected void finish()
+    {
+        stopWorkers();
+        metrics.finish();
+        
         finalise(getBestParticle().getBestValues());
         
         if (writer != null)
             writer.flush();
     }
     
-    public Particle getCurrentBestParticle()
+    // records that iteration i has finished, and checks whether to stop
+    private boolean isStopping(int i)
     {
-        int best = 0;
-        for (int i = 0; i < particles.length; i++)
+        iterations = i;
+        if (stoppingCondition != null)
+            stoppedBy = stoppingCondition.check(this, i);
+        return stoppedBy != null;
+    }
+    
+    private void stopWorkers()
+    {
+        if (executor != null)
         {
-            if (particles[i].getFitness() < particles[best].getFitness())
-                best = i;
+            executor.shutdown();
+            executor = null;
         }
-        return particles[best];
     }
     
-    public Particle getBestParticle()
+    /**
+     * Brings a position found elsewhere into the swarm, replacing the
+     * particle with the worst personal best.
+     * @param values The position, which is copied.
+     * @param fitness Its fitness.
+     */
+    protected void immigrate(double[] values, double fitness)
     {
-        int best = 0;
-        for (int i = 0; i < particles.length; i++)
+        int worst = 0;
+        for (int j = 1; j < particles.length; j++)
         {
-            if (particles[i].getBestFitness() < particles[best].getBestFitness())
-                best = i;
+            if (particles[j].getBestFitness() > particles[worst].getBestFitness())
+                worst = j;
         }
+        
+        particles[worst].replace(values, fitness);
+        refreshBestParticle();
+        topology.update();
+    }
+    
+    /**
+     * @return The particles in the swarm.
+     */
+    protected Particle[] getParticles()
+    {
+        return particles;
+    }
+    
+    /**
+     * @return The particle with the best fitness in the latest iteration, or
+     * during an asynchronous run, in the evaluations up to the latest
+     * statistics output. Other workers of an asynchronous run may be moving
+     * the particle.
+     */
+    public Particle getCurrentBestParticle()
+    {
+        return particles[currentBest];
+    }
+    
+    /**
+     * @return The particle with the best personal best so far. Other workers
+     * of an asynchronous run may be moving the particle, and improving its
+     * personal best; getBestFitness and getBestValues are safe to call then.
+     */
+    public Particle getBestParticle()
+    {
         return particles[best];
     }
+    
+    /**
+     * @return The best personal best fitness so far, which can be read at
+     * any time, even while asynchronous workers are running.
+     */
+    public double getBestFitness()
+    {
+        AsynchronousRun run = running;
+        return run != null ? run.swarmBest.fitness : particles[best].getBestFitness();
+    }
+    
+    /**
+     * @return The best personal best position so far, which can be read at
+     * any time, even while asynchronous workers are running. It must not be
+     * changed, and is only guaranteed not to change while no optimisation is
+     * running, or during an asynchronous run.
+     */
+    public double[] getBestValues()
+    {
+        AsynchronousRun run = running;
+        return run != null ? run.swarmBest.values : particles[best].getBestValues();
+    }
+
+    public int getMaxIterations()
+    {
+        return maxIterations;
+    }
+
+    /**
+     * Saves the state of the swarm to a file every so many iterations, so
+     * that an optimisation that is cut short can be resumed. Only the
+     * synchronous PSO writes checkpoints.
+     * @param file The checkpoint file, or null for no checkpoints.
+     * @param interval Iterations between checkpoints.
+     */
+    public void setCheckpoint(File file, int interval)
+    {
+        if (file != null && interval < 1)
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1.");
+        checkpoint = file == null ? null : new Checkpoint(file);
+        checkpointInterval = interval;
+    }
+
+    /**
+     * Sets a condition for stopping before the maximum number of iterations,
+     * checked after every iteration. The best position found so far is then
+     * finalised as usual.
+     * @param stoppingCondition The condition, or null to always run to the
+     * maximum number of iterations.
+     */
+    public void setStoppingCondition(StoppingCondition stoppingCondition)
+    {
+        this.stoppingCondition = stoppingCondition;
+    }
+
+    /**
+     * @return The condition that stopped the last optimisation, or null if it
+     * ran to the maximum number of iterations.
+     */
+    public StoppingCondition getStoppedBy()
+    {
+        return stoppedBy;
+    }
+
+    /**
+     * @return The number of iterations the last optimisation ran.
+     */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * Sets the number of worker threads used to evaluate particle fitness.
+     * The default of 1 evaluates every particle on the calling thread.
+     * @param numThreads 
+     */
+    public void setNumThreads(int numThreads)
+    {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1.");
+        this.numThreads = numThreads;
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    /**
+     * Switches between the usual synchronous PSO, where every particle is
+     * moved and then every particle evaluated in lock step, and an
+     * asynchronous one with no barrier between iterations. In the
+     * asynchronous PSO each worker thread moves and evaluates one particle
+     * at a time, using the best personal bests its neighbours have published
+     * so far, so no worker waits for a slow evaluation elsewhere. The
+     * iteration budget is spent as maxIterations times the swarm size
+     * evaluations, and statistics are output, for the best personal best so
+     * far, each time another swarm's worth of evaluations has finished.
+     * beginIteration is only called for the initial evaluation.
+     * @param asynchronous 
+     */
+    public void setAsynchronous(boolean asynchronous)
+    {
+        this.asynchronous = asynchronous;
+    }
+
+    public boolean isAsynchronous()
+    {
+        return asynchronous;
+    }
+
+    /**
+     * @return The number of particle fitness evaluations so far in this
+     * optimisation.
+     */
+    public long getEvaluations()
+    {
+        return evaluations.get();
+    }
+
+    /**
+     * @return Timings and other metrics of the optimisation as it runs,
+     * which can be watched through JMX once registered.
+     */
+    public PSOMetrics getMetrics()
+    {
+        return metrics;
+    }
 
     /**
      * Sets a destination to output the PSO's training statistics.
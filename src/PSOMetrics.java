@@ -0,0 +1,240 @@
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of a PSO, which can be published as a JMX MBean.
+ * The PSO times each phase of an iteration: moving the particles,
+ * evaluating them, updating the topology with their new fitnesses, and
+ * outputting statistics. That costs a few calls to System.nanoTime() per
+ * iteration, so it is always on. Everything else, such as the swarm's
+ * diversity, is only worked out when it is read, so nothing is spent on it
+ * while nobody is watching.
+ * <p>
+ * Values are read from another thread while the PSO is changing them, so
+ * fitnesses and diversity may be a mix of two iterations.
+ * @author Daniel
+ */
+public class PSOMetrics implements PSOMetricsMBean
+{
+    private PSO pso;
+    private ObjectName name = null;
+
+    // written by one thread at a time, as the PSO runs
+    private volatile boolean running = false;
+    private volatile long started;
+    private volatile long finished;
+    private volatile int iteration;
+
+    // phases finished so far in the current iteration
+    private long evaluation, topology;
+
+    // the last iteration's phases, and the totals, in nanoseconds
+    private volatile long lastUpdate, lastEvaluation, lastTopology, lastOutput;
+    private volatile long totalUpdate, totalEvaluation, totalTopology, totalOutput;
+
+    PSOMetrics(PSO pso)
+    {
+        this.pso = pso;
+    }
+
+    /**
+     * Publishes the metrics on the platform MBean server, as
+     * PSONN:type=PSO,name=name.
+     * @param name Tells this PSO apart from others in the same process.
+     * @return The name registered under.
+     * @throws JMException If the metrics cannot be registered, e.g. if the
+     * name is taken.
+     */
+    public ObjectName register(String name)
+            throws JMException
+    {
+        unregister();
+        ObjectName objectName = new ObjectName("PSONN:type=PSO,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.name = objectName;
+        return objectName;
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if registered.
+     * @throws JMException
+     */
+    public void unregister()
+            throws JMException
+    {
+        if (name != null)
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    void start(int iteration)
+    {
+        this.iteration = iteration;
+        evaluation = topology = 0;
+        lastUpdate = lastEvaluation = lastTopology = lastOutput = 0;
+        totalUpdate = totalEvaluation = totalTopology = totalOutput = 0;
+        started = System.nanoTime();
+        running = true;
+    }
+
+    void finish()
+    {
+        if (running)
+        {
+            finished = System.nanoTime();
+            running = false;
+        }
+    }
+
+    void evaluated(long nanos)
+    {
+        evaluation += nanos;
+    }
+
+    void topologyUpdated(long nanos)
+    {
+        topology += nanos;
+    }
+
+    /**
+     * Records an iteration, with the evaluation and topology times recorded
+     * since the last one.
+     */
+    void iterated(int i, long update, long output)
+    {
+        lastUpdate = update;
+        lastEvaluation = evaluation;
+        lastTopology = topology;
+        lastOutput = output;
+        totalUpdate += update;
+        totalEvaluation += evaluation;
+        totalTopology += topology;
+        totalOutput += output;
+        evaluation = topology = 0;
+        iteration = i;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    @Override
+    public int getIteration()
+    {
+        return iteration;
+    }
+
+    @Override
+    public long getEvaluations()
+    {
+        return pso.getEvaluations();
+    }
+
+    @Override
+    public double getEvaluationsPerSecond()
+    {
+        long elapsed = (running ? System.nanoTime() : finished) - started;
+        return elapsed > 0 ? pso.getEvaluations()*1e9/elapsed : 0;
+    }
+
+    @Override
+    public double getCurrentFitness()
+    {
+        return pso.getCurrentBestParticle().getFitness();
+    }
+
+    @Override
+    public double getBestFitness()
+    {
+        return pso.getBestFitness();
+    }
+
+    @Override
+    public double getDiversity()
+    {
+        Particle[] particles = pso.getParticles();
+        double[] centre = new double[particles[0].getValues().length];
+        for (Particle particle : particles)
+        {
+            double[] values = particle.getValues();
+            for (int d = 0; d < centre.length; d++)
+            {
+                centre[d] += values[d];
+            }
+        }
+        for (int d = 0; d < centre.length; d++)
+        {
+            centre[d] /= particles.length;
+        }
+
+        double sum = 0;
+        for (Particle particle : particles)
+        {
+            double[] values = particle.getValues();
+            double squared = 0;
+            for (int d = 0; d < centre.length; d++)
+            {
+                squared += (values[d] - centre[d])*(values[d] - centre[d]);
+            }
+            sum += Math.sqrt(squared);
+        }
+        return sum/particles.length;
+    }
+
+    @Override
+    public double getUpdateMillis()
+    {
+        return lastUpdate/1e6;
+    }
+
+    @Override
+    public double getEvaluationMillis()
+    {
+        return lastEvaluation/1e6;
+    }
+
+    @Override
+    public double getTopologyMillis()
+    {
+        return lastTopology/1e6;
+    }
+
+    @Override
+    public double getOutputMillis()
+    {
+        return lastOutput/1e6;
+    }
+
+    @Override
+    public double getTotalUpdateSeconds()
+    {
+        return totalUpdate/1e9;
+    }
+
+    @Override
+    public double getTotalEvaluationSeconds()
+    {
+        return totalEvaluation/1e9;
+    }
+
+    @Override
+    public double getTotalTopologySeconds()
+    {
+        return totalTopology/1e9;
+    }
+
+    @Override
+    public double getTotalOutputSeconds()
+    {
+        return totalOutput/1e9;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * The management interface of PSOMetrics, seen through JMX (e.g. in
+ * JConsole or VisualVM) while an optimisation runs. Times are for the last
+ * iteration unless they say otherwise.
+ * @author Daniel
+ */
+public interface PSOMetricsMBean
+{
+    /**
+     * @return Whether an optimisation is running.
+     */
+    public boolean isRunning();
+
+    /**
+     * @return The last iteration finished.
+     */
+    public int getIteration();
+
+    /**
+     * @return Fitness evaluations so far in this optimisation.
+     */
+    public long getEvaluations();
+
+    /**
+     * @return Fitness evaluations per second since the optimisation started.
+     */
+    public double getEvaluationsPerSecond();
+
+    /**
+     * @return The best fitness in the last iteration.
+     */
+    public double getCurrentFitness();
+
+    /**
+     * @return The best fitness found so far.
+     */
+    public double getBestFitness();
+
+    /**
+     * @return The mean distance of the particles from the centre of the
+     * swarm.
+     */
+    public double getDiversity();
+
+    public double getUpdateMillis();
+
+    public double getEvaluationMillis();
+
+    public double getTopologyMillis();
+
+    public double getOutputMillis();
+
+    public double getTotalUpdateSeconds();
+
+    public double getTotalEvaluationSeconds();
+
+    public double getTotalTopologySeconds();
+
+    public double getTotalOutputSeconds();
+}
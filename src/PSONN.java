@@ -1,5 +1,16 @@
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Represents a Particle Swarm Optimisation specifically catered for training
@@ -9,11 +20,52 @@ import java.io.PrintWriter;
 public class PSONN extends PSO
 {
     
+    // evaluates every particle, on any thread, by running it with the
+    // particle's weights, so it holds only the weights set in finalise
     private NeuralNetwork nn;
     
     private DataSet trainingData, testingData;
     
+    // the data set in its original order, if this PSO split it
+    private DataSet unshuffled = null;
+    
+    // used instead of trainingData and testingData for data kept on disk
+    private ChunkedDataSet trainingChunks, testingChunks;
+    
+    // the part of the training data particles are currently scored on
+    private DataSet batchData;
+    private ChunkedDataSet batchChunks;
+    // the range of the training data batchData covers, if not all of it
+    private int batchStart, batchEnd;
+    
+    private int batchSize = 0;
+    private int revalidationInterval = 0;
+    
+    private boolean singlePrecision = false;
+    private boolean swarmEvaluation = true;
+    
     private NeuralNetwork.Statistic trainingStat = null, testingStat = null;
+    
+    // the statistic behind each fitness calculated on the full training
+    // data, by position array, so outputStatistics need not run it again.
+    private Map<double[], NeuralNetwork.Statistic> fitnessStats =
+            Collections.synchronizedMap(new IdentityHashMap<double[], NeuralNetwork.Statistic>());
+    
+    // the position testingStat was calculated for
+    private double[] testedValues = null;
+    
+    private int testInterval = 1;
+    private boolean backgroundTesting = false;
+    private ExecutorService testExecutor = null;
+    private Future<NeuralNetwork.Statistic> pendingTest = null;
+    
+    private TrainingLog log = null;
+    
+    private RemoteEvaluator remote = null;
+    
+    // statistics of the best position for Target, kept until it changes
+    private double[] scoredValues = null;
+    private NeuralNetwork.Statistic scoredTraining = null, scoredTesting = null;
 
     /**
      * Creates a PSO for training a Neural Network
@@ -42,29 +94,501 @@ public class PSONN extends PSO
                 maxIterations, topology, w, c1, c2, vmax, numParticles,
                 lowerBound, upperBound);
         
-        dataSet.shuffle();
+        // the caller's set keeps its order, so a seeded PSO always splits
+        // it the same way
+        unshuffled = dataSet.getSubset(0);
+        DataSet shuffled = dataSet.getSubset(0);
+        shuffled.shuffle(getRng().split());
+        split(shuffled);
+        
+        createNetworks(dataSet.getNumInputs(), numHiddenUnits, dataSet.getNumOutputs(), activationFunction);
+    }
+    
+    /**
+     * Creates a PSO for training a Neural Network on data that has already
+     * been split, e.g. so that several PSOs can share the same split.
+     * @param trainingData Data Set to use for training the Neural Network.
+     * @param testingData Data Set to use for testing the Neural Network.
+     * @param maxIterations Total number of iterations to go through (stopping condition)
+     * @param numHiddenUnits Number of hidden units in the Neural Network
+     * @param activationFunction The Neuron Activation Function for the Neural Network.
+     * @param topology The topology (e.g. Ring or Star) to use for grouping particles.
+     * @param w weight/momentum factor
+     * @param c1 cognitive coefficient
+     * @param c2 social coefficient
+     * @param numParticles The number of particles to use.
+     * @param lowerBound Lower bound for sampling particle positions.
+     * @param upperBound Upper bound for sampling particle positions.
+     */
+    public PSONN(DataSet trainingData, DataSet testingData, int maxIterations,
+            int numHiddenUnits, Function activationFunction, Topology topology,
+            double w, double c1, double c2, double vmax, int numParticles,
+            double lowerBound, double upperBound)
+    {
+        super(
+                // Dimensions := (I+1)J + (J+1)K
+                (trainingData.getNumInputs()+1)*numHiddenUnits
+                + (numHiddenUnits+1)*trainingData.getNumOutputs(),
+                
+                maxIterations, topology, w, c1, c2, vmax, numParticles,
+                lowerBound, upperBound);
+        
+        this.trainingData = trainingData;
+        this.testingData = testingData;
+        batchData = trainingData;
+        
+        createNetworks(trainingData.getNumInputs(), numHiddenUnits, trainingData.getNumOutputs(), activationFunction);
+    }
+    
+    /**
+     * Creates a PSO for training a Neural Network on a data set that is too
+     * big to hold in memory. The first 60% of the file is used for training
+     * and the rest for testing, so the file should already be shuffled.
+     * @param dataSet Data Set to use for training and testing the Neural Network.
+     * @param maxIterations Total number of iterations to go through (stopping condition)
+     * @param numHiddenUnits Number of hidden units in the Neural Network
+     * @param activationFunction The Neuron Activation Function for the Neural Network.
+     * @param topology The topology (e.g. Ring or Star) to use for grouping particles.
+     * @param w weight/momentum factor
+     * @param c1 cognitive coefficient
+     * @param c2 social coefficient
+     * @param numParticles The number of particles to use.
+     * @param lowerBound Lower bound for sampling particle positions.
+     * @param upperBound Upper bound for sampling particle positions.
+     */
+    public PSONN(ChunkedDataSet dataSet, int maxIterations, int numHiddenUnits,
+            Function activationFunction, Topology topology, double w,
+            double c1, double c2, double vmax, int numParticles,
+            double lowerBound, double upperBound)
+    {
+        super(
+                // Dimensions := (I+1)J + (J+1)K
+                (dataSet.getNumInputs()+1)*numHiddenUnits
+                + (numHiddenUnits+1)*dataSet.getNumOutputs(),
+                
+                maxIterations, topology, w, c1, c2, vmax, numParticles,
+                lowerBound, upperBound);
+        
+        int sixtyPercent = (int)(dataSet.getSize() * 0.6);
+        
+        trainingChunks = dataSet.getSubset(0, sixtyPercent);
+        testingChunks = dataSet.getSubset(sixtyPercent);
+        batchChunks = trainingChunks;
+        
+        createNetworks(dataSet.getNumInputs(), numHiddenUnits, dataSet.getNumOutputs(), activationFunction);
+    }
+    
+    // uses the first 60% of a shuffled data set for training, and the rest
+    // for testing
+    private void split(DataSet dataSet)
+    {
         int sixtyPercent = (int)(dataSet.getSize() * 0.6);
         
         trainingData = dataSet.getSubset(0, sixtyPercent);
         testingData = dataSet.getSubset(sixtyPercent);
+        batchData = trainingData;
+    }
+    
+    /**
+     * Seeds the PSO, including the shuffle of the data set before it is
+     * split into training and testing data, if this PSO split it.
+     * @param seed 
+     */
+    @Override
+    public void setSeed(long seed)
+    {
+        super.setSeed(seed);
+        if (unshuffled != null)
+        {
+            DataSet dataSet = unshuffled.getSubset(0);
+            dataSet.shuffle(getRng().split());
+            split(dataSet);
+        }
+    }
+    
+    private void createNetworks(int numInputs, int hidden, int numOutputs, Function function)
+    {
+        nn = new NeuralNetwork(numInputs, hidden, numOutputs, function);
+        nn.setSinglePrecision(singlePrecision);
+    }
+    
+    /**
+     * Trains in single precision: the data set's features are held as
+     * floats, and the networks run with float weights and arithmetic. This
+     * halves the memory taken by the data set, but not by the swarm, whose
+     * positions stay in double precision. It is only faster with activation
+     * functions that work in float, such as FastSigmoid and FastTanh;
+     * Sigmoid and Tanh go through Math.exp and Math.tanh in double, and
+     * are slower than in double precision. Must be called before
+     * optimising, and only for data held in memory. Remote workers still
+     * evaluate in double precision.
+     * @param singlePrecision 
+     */
+    public void setSinglePrecision(boolean singlePrecision)
+    {
+        if (trainingData == null)
+            throw new IllegalStateException("Single precision needs the data in memory.");
+        this.singlePrecision = singlePrecision;
+        
+        if (unshuffled != null)
+        {
+            DataSet[] sets = DataSet.convert(singlePrecision, unshuffled, trainingData, testingData);
+            unshuffled = sets[0];
+            trainingData = sets[1];
+            testingData = sets[2];
+        }
+        else
+        {
+            DataSet[] sets = DataSet.convert(singlePrecision, trainingData, testingData);
+            trainingData = sets[0];
+            testingData = sets[1];
+        }
+        batchData = trainingData;
         
-        nn = new NeuralNetwork(dataSet.getNumInputs(), numHiddenUnits, dataSet.getNumOutputs(), activationFunction);
+        nn.setSinglePrecision(singlePrecision);
+    }
+    
+    public boolean isSinglePrecision()
+    {
+        return singlePrecision;
     }
     
     @Override
     protected double getFitness(double[] values)
     {
-        nn.setWeights(values);
-        return nn.run(trainingData).getMeanSquaredError();
+        NeuralNetwork.Statistic stat = run(values, batchData, batchChunks);
+        if (batchData == trainingData && batchChunks == trainingChunks)
+            fitnessStats.put(values, stat);
+        return stat.getMeanSquaredError();
+    }
+    
+    @Override
+    protected void evaluate(double[][] positions, double[] results, int from, int to)
+    {
+        if (!swarmEvaluation)
+        {
+            super.evaluate(positions, results, from, to);
+            return;
+        }
+        
+        NeuralNetwork.Statistic[] stats = run(Arrays.copyOfRange(positions, from, to), batchData, batchChunks);
+        boolean full = batchData == trainingData && batchChunks == trainingChunks;
+        for (int j = from; j < to; j++)
+        {
+            results[j] = stats[j - from].getMeanSquaredError();
+            if (full)
+                fitnessStats.put(positions[j], stats[j - from]);
+        }
+    }
+    
+    /**
+     * Sets whether the particles each thread evaluates are run over the
+     * training data together, in one pass (see
+     * NeuralNetwork.run(double[][], DataSet)), or one after another. Both
+     * give the same fitness; together is the default, and is faster as each
+     * pattern is read once per pass rather than once per particle. Does not
+     * affect the asynchronous PSO or remote evaluation.
+     * @param swarmEvaluation 
+     */
+    public void setSwarmEvaluation(boolean swarmEvaluation)
+    {
+        this.swarmEvaluation = swarmEvaluation;
+    }
+    
+    public boolean isSwarmEvaluation()
+    {
+        return swarmEvaluation;
+    }
+    
+    /**
+     * Sets how often the test set is run while training. The testing
+     * statistics written in between repeat the last ones calculated.
+     * @param testInterval Run the test set every testInterval iterations.
+     */
+    public void setTestInterval(int testInterval)
+    {
+        if (testInterval < 1)
+            throw new IllegalArgumentException("Test interval must be at least 1.");
+        this.testInterval = testInterval;
+    }
+    
+    /**
+     * Runs the test set on a background thread while training carries on.
+     * Each iteration then writes the latest testing statistics that have
+     * finished, which may be from an earlier iteration.
+     * @param backgroundTesting 
+     */
+    public void setBackgroundTesting(boolean backgroundTesting)
+    {
+        this.backgroundTesting = backgroundTesting;
+    }
+    
+    /**
+     * Scores the particles on a different batch of the training data each
+     * iteration, rather than on all of it. The batches take turns through
+     * the training data, which was shuffled when it was split off. Since a
+     * batch score is only an estimate, every personal best is scored again
+     * on the full training data every revalidationInterval iterations, and
+     * before the best particle is chosen at the end.
+     * @param batchSize Patterns per batch, or 0 to use all the training data.
+     * @param revalidationInterval Iterations between re-scoring the
+     * personal bests, or 0 to only do so at the end.
+     */
+    public void setMiniBatch(int batchSize, int revalidationInterval)
+    {
+        if (batchSize < 0 || revalidationInterval < 0)
+            throw new IllegalArgumentException("Batch size and revalidation interval must not be negative.");
+        this.batchSize = batchSize;
+        this.revalidationInterval = revalidationInterval;
+    }
+
+    @Override
+    protected void beginIteration(int i)
+    {
+        if (batchSize == 0)
+            return;
+        if (isAsynchronous())
+            throw new IllegalStateException("Mini-batches cannot be used by the asynchronous PSO.");
+        
+        if (revalidationInterval > 0 && i > 0 && i % revalidationInterval == 0)
+            revalidate();
+        
+        int size = trainingData != null ? trainingData.getSize() : trainingChunks.getSize();
+        int numBatches = (size + batchSize - 1) / batchSize;
+        int start = (i % numBatches) * batchSize;
+        int end = Math.min(start + batchSize, size);
+        batchStart = start;
+        batchEnd = end;
+        if (trainingData != null)
+            batchData = trainingData.getSubset(start, end);
+        else
+            batchChunks = trainingChunks.getSubset(start, end);
+    }
+    
+    // scores every personal best on the full training data
+    private void revalidate()
+    {
+        batchData = trainingData;
+        batchChunks = trainingChunks;
+        
+        Particle[] particles = getParticles();
+        double[][] bests = new double[particles.length][];
+        for (int j = 0; j < particles.length; j++)
+        {
+            bests[j] = particles[j].getBestValues();
+        }
+        double[] fitness = new double[particles.length];
+        evaluate(bests, fitness);
+        for (int j = 0; j < particles.length; j++)
+        {
+            particles[j].setBestFitness(fitness[j]);
+        }
+        refreshBestParticle();
+    }
+    
+    /**
+     * Evaluates the particles on worker processes rather than in this one.
+     * The workers must have been started on the same data file, and are
+     * connected to when optimisation starts. Only the synchronous PSO can
+     * use them, and only for data held in memory. The evaluator is not
+     * closed by the PSO.
+     * @param remote The workers, or null to evaluate locally.
+     */
+    public void setRemoteEvaluator(RemoteEvaluator remote)
+    {
+        if (remote != null && trainingData == null)
+            throw new IllegalStateException("Remote evaluation needs the data in memory.");
+        this.remote = remote;
+    }
+    
+    @Override
+    protected void start()
+    {
+        if (remote != null)
+        {
+            if (isAsynchronous())
+                throw new IllegalStateException("The asynchronous PSO cannot use remote evaluation.");
+            try
+            {
+                remote.connect(nn, trainingData);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Could not start remote evaluation.", e);
+            }
+        }
+        super.start();
+    }
+    
+    @Override
+    protected void evaluate(double[][] positions, double[] results)
+    {
+        if (remote == null)
+        {
+            super.evaluate(positions, results);
+        }
+        else if (batchData == trainingData)
+        {
+            remote.evaluate(positions, results, 0, trainingData.getSize());
+        }
+        else
+        {
+            remote.evaluate(positions, results, batchStart, batchEnd);
+        }
+    }
+    
+    // runs the network with the given weights on whichever of data or
+    // chunks is in use
+    private NeuralNetwork.Statistic run(double[] weights, DataSet data, ChunkedDataSet chunks)
+    {
+        if (data != null)
+            return nn.run(weights, data);
+        
+        try
+        {
+            return nn.run(weights, chunks);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read the data set.", e);
+        }
+    }
+    
+    // the same, for many sets of weights at once
+    private NeuralNetwork.Statistic[] run(double[][] weights, DataSet data, ChunkedDataSet chunks)
+    {
+        if (data != null)
+            return nn.run(weights, data);
+        
+        try
+        {
+            return nn.run(weights, chunks);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read the data set.", e);
+        }
     }
 
     @Override
     protected void outputStatistics(int i, double[] values)
     {
-        nn.setWeights(values);
-        trainingStat = nn.run(trainingData);
-        testingStat = nn.run(testingData);
-        if (writer != null)
+        if (log == null && writer == null)
+            return;
+        
+        trainingStat = run(values, trainingData, trainingChunks);
+        updateTestingStatistic(i, values);
+        writeStatistics(i);
+    }
+
+    @Override
+    protected void outputStatistics(int i, Particle best)
+    {
+        if (log == null && writer == null)
+            return;
+        
+        // reuse the training statistic from the fitness evaluation if there
+        // was one for exactly this position
+        double[] values = best.getValues();
+        NeuralNetwork.Statistic stat = fitnessStats.get(values);
+        if (stat != null && stat.getMeanSquaredError() == best.getFitness())
+        {
+            trainingStat = stat;
+            updateTestingStatistic(i, values);
+            writeStatistics(i);
+        }
+        else
+        {
+            outputStatistics(i, values);
+        }
+    }
+    
+    // recalculates testingStat for the position values if it is due
+    private void updateTestingStatistic(int i, double[] values)
+    {
+        if (backgroundTesting)
+        {
+            if (pendingTest != null && (pendingTest.isDone() || testingStat == null))
+            {
+                testingStat = await(pendingTest);
+                pendingTest = null;
+            }
+            if (pendingTest == null && isTestDue(i, values))
+            {
+                testedValues = values.clone();
+                final double[] weights = testedValues;
+                pendingTest = getTestExecutor().submit(new Callable<NeuralNetwork.Statistic>()
+                {
+                    @Override
+                    public NeuralNetwork.Statistic call()
+                    {
+                        return run(weights, testingData, testingChunks);
+                    }
+                });
+                if (testingStat == null)
+                {
+                    testingStat = await(pendingTest);
+                    pendingTest = null;
+                }
+            }
+        }
+        else if (isTestDue(i, values))
+        {
+            testedValues = values.clone();
+            testingStat = run(testedValues, testingData, testingChunks);
+        }
+    }
+    
+    private boolean isTestDue(int i, double[] values)
+    {
+        if (testingStat == null)
+            return true;
+        return i % testInterval == 0 && !Arrays.equals(values, testedValues);
+    }
+    
+    private ExecutorService getTestExecutor()
+    {
+        if (testExecutor == null)
+        {
+            testExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "PSONN testing");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return testExecutor;
+    }
+    
+    private static NeuralNetwork.Statistic await(Future<NeuralNetwork.Statistic> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while testing.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Testing failed.", e.getCause());
+        }
+    }
+    
+    private void writeStatistics(int i)
+    {
+        if (log != null)
+        {
+            log.log(i, trainingStat.getMeanSquaredError(), trainingStat.getAccuracy(),
+                    testingStat.getMeanSquaredError(), testingStat.getAccuracy());
+        }
+        else if (writer != null)
         {
             writer.printf("%d\t%g\t%.1f%%\t%g\t%.1f%%\n", i,
                     trainingStat.getMeanSquaredError(),
@@ -77,9 +601,35 @@ public class PSONN extends PSO
     @Override
     protected void finalise(double[] values)
     {
-        nn.setWeights(getBestParticle().getBestValues());
-        trainingStat = nn.run(trainingData);
-        testingStat = nn.run(testingData);
+        if (pendingTest != null)
+        {
+            await(pendingTest);
+            pendingTest = null;
+        }
+        if (testExecutor != null)
+        {
+            testExecutor.shutdown();
+            testExecutor = null;
+        }
+        fitnessStats.clear();
+        
+        if (batchSize > 0)
+            revalidate();
+        
+        double[] best = getBestParticle().getBestValues();
+        nn.setWeights(best);
+        trainingStat = run(best, trainingData, trainingChunks);
+        testingStat = run(best, testingData, testingChunks);
+    }
+    
+    /**
+     * Sets a log to receive the training statistics, instead of formatting
+     * them on the optimising thread. The log is not closed by the PSO.
+     * @param log 
+     */
+    public void setLog(TrainingLog log)
+    {
+        this.log = log;
     }
     
     public NeuralNetwork.Statistic getTrainingStatistic()
@@ -102,4 +652,87 @@ public class PSONN extends PSO
     {
         return nn;
     }
+    
+    // scores the best position found so far on the training or testing data;
+    // getBestValues is a copy no worker writes to during an asynchronous run
+    private NeuralNetwork.Statistic scoreBest(boolean training)
+    {
+        double[] values = getBestValues();
+        if (!Arrays.equals(values, scoredValues))
+        {
+            scoredValues = values.clone();
+            scoredTraining = null;
+            scoredTesting = null;
+        }
+        
+        if (training && scoredTraining == null)
+        {
+            scoredTraining = run(scoredValues, trainingData, trainingChunks);
+        }
+        else if (!training && scoredTesting == null)
+        {
+            scoredTesting = run(scoredValues, testingData, testingChunks);
+        }
+        return training ? scoredTraining : scoredTesting;
+    }
+    
+    /**
+     * Stops once the best network found reaches a target MSE or accuracy on
+     * the training or testing data. The best network is only run again when
+     * it changes.
+     */
+    public static class Target extends StoppingCondition
+    {
+        public enum Measure
+        {
+            TRAINING_MSE, TRAINING_ACCURACY, TESTING_MSE, TESTING_ACCURACY
+        }
+        
+        private Measure measure;
+        private double target;
+
+        /**
+         * @param measure What to measure.
+         * @param target The MSE to get down to, or the fraction of patterns
+         * to classify correctly.
+         */
+        public Target(Measure measure, double target)
+        {
+            this.measure = measure;
+            this.target = target;
+        }
+
+        @Override
+        public boolean isMet(PSO pso, int i)
+        {
+            PSONN psonn = (PSONN)pso;
+            switch (measure)
+            {
+                case TRAINING_MSE:
+                    return psonn.scoreBest(true).getMeanSquaredError() <= target;
+                case TRAINING_ACCURACY:
+                    return psonn.scoreBest(true).getAccuracy() >= target;
+                case TESTING_MSE:
+                    return psonn.scoreBest(false).getMeanSquaredError() <= target;
+                default:
+                    return psonn.scoreBest(false).getAccuracy() >= target;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            switch (measure)
+            {
+                case TRAINING_MSE:
+                    return String.format("target training MSE of %g", target);
+                case TRAINING_ACCURACY:
+                    return String.format("target training accuracy of %.1f%%", target*100);
+                case TESTING_MSE:
+                    return String.format("target testing MSE of %g", target);
+                default:
+                    return String.format("target testing accuracy of %.1f%%", target*100);
+            }
+        }
+    }
 }
@@ -10,6 +10,8 @@ public class Particle
     private double pbestFitness;
     
     private double[] velocity;
+    
+    private Rng rng;
 
     /**
      * Creates a new particle with number of values, and an upper and lower bound from which to sample initial values.
@@ -19,6 +21,21 @@ public class Particle
      */
     public Particle(int numValues, double lowerBound, double upperBound)
     {
+        this(numValues, lowerBound, upperBound, new Rng());
+    }
+
+    /**
+     * Creates a new particle with number of values, and an upper and lower bound from which to sample initial values.
+     * @param numValues
+     * @param lowerBound
+     * @param upperBound 
+     * @param rng The particle's own random number generator, used for its
+     * initial values and every update.
+     */
+    public Particle(int numValues, double lowerBound, double upperBound, Rng rng)
+    {
+        this.rng = rng;
+        
         // x[i] ~U(lowerBound,upperBound)
         values = new double[numValues];
         
@@ -28,7 +45,7 @@ public class Particle
         double range = upperBound - lowerBound;
         for (int i = 0; i < numValues; i++)
         {
-            values[i] = range*Math.random() + lowerBound;
+            values[i] = range*rng.nextDouble() + lowerBound;
             velocity[i] = 0; // initialize velocities to zero.
         }
         
@@ -48,23 +65,43 @@ public class Particle
     public void update(double w, double c1, double c2, double vmax,
             double[] gbest)
     {
+        if (gbest.length != values.length) throw new IllegalArgumentException("Vector component count mismatch.");
+        
         // r1, r2 ~U(0,1)
-        double r1 = Math.random();
-        double r2 = Math.random();
+        double r1 = rng.nextDouble();
+        double r2 = rng.nextDouble();
+        double cr1 = c1*r1;
+        double cr2 = c2*r2;
         
         // v(t) = w * v(t-1) + c1 * r1 * (pbest - x(t)) + c2 * r2 * (gbest - x(t))
         // NOTE: gbest here may also refer to lbest, based on PSO topology.
-        velocity = add(add(multiply(velocity, w), multiply(subtract(pbest, values), c1*r1)),multiply(subtract(gbest, values), c2*r2));
+        // Everything is done in place; gbest may be this particle's own
+        // values, so no position is written until the velocity is complete.
+        double lensq = 0;
+        for (int i = 0; i < values.length; i++)
+        {
+            double v = velocity[i]*w + (pbest[i]-values[i])*cr1 + (gbest[i]-values[i])*cr2;
+            velocity[i] = v;
+            lensq += v*v;
+        }
         
-        // clamp velocity to vmax
-        double lensq = lengthSquared(velocity);
+        // clamp velocity to vmax, then x(t+1) = x(t) + v(t)
         if (lensq > vmax*vmax)
         {
-            velocity = multiply(velocity,1.0/(Math.sqrt(lensq)));
+            double scale = 1.0/(Math.sqrt(lensq));
+            for (int i = 0; i < values.length; i++)
+            {
+                velocity[i] *= scale;
+                values[i] += velocity[i];
+            }
+        }
+        else
+        {
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] += velocity[i];
+            }
         }
-        
-        // x(t+1) = x(t) + v(t)
-        values = add(values,velocity);
     }
 
     public double[] getValues()
@@ -87,6 +124,56 @@ public class Particle
         return pbest;
     }
     
+    public double[] getVelocity()
+    {
+        return velocity;
+    }
+    
+    public Rng getRng()
+    {
+        return rng;
+    }
+    
+    /**
+     * Replaces the current fitness without touching the personal best, e.g.
+     * when restoring a saved swarm.
+     * @param fitness 
+     */
+    public void setFitness(double fitness)
+    {
+        this.fitness = fitness;
+    }
+    
+    /**
+     * Replaces the fitness recorded for the personal best, e.g. after scoring
+     * it again more accurately.
+     * @param fitness 
+     */
+    public void setBestFitness(double fitness)
+    {
+        pbestFitness = fitness;
+    }
+    
+    /**
+     * Moves the particle to a position found elsewhere, which becomes its
+     * personal best, and brings it to rest.
+     * @param values The position, which is copied.
+     * @param fitness Its fitness.
+     */
+    public void replace(double[] values, double fitness)
+    {
+        if (values.length != this.values.length) throw new IllegalArgumentException("Vector component count mismatch.");
+        
+        System.arraycopy(values, 0, this.values, 0, values.length);
+        System.arraycopy(values, 0, pbest, 0, values.length);
+        for (int i = 0; i < velocity.length; i++)
+        {
+            velocity[i] = 0;
+        }
+        this.fitness = fitness;
+        pbestFitness = fitness;
+    }
+    
     /**
      * Update the particle's personal best.
      * @param fitness New mean square error.
@@ -0,0 +1,90 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A connection to a PredictionServer. A client sends one request at a time,
+ * so should not be shared between threads; concurrent callers should each
+ * have their own, which lets the server batch their requests together.
+ * @author Daniel
+ */
+public class PredictionClient
+{
+    private static final int CONNECT_TIMEOUT = 10000;
+    
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private int numInputs, numOutputs;
+    
+    /**
+     * @param address Where the server is listening.
+     * @throws IOException If the server cannot be reached.
+     */
+    public PredictionClient(InetSocketAddress address)
+            throws IOException
+    {
+        socket = new Socket();
+        try
+        {
+            socket.connect(address, CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != PredictionServer.MAGIC)
+                throw new IOException("Not a prediction server.");
+            numInputs = in.readInt();
+            numOutputs = in.readInt();
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+    }
+    
+    public int getNumInputs()
+    {
+        return numInputs;
+    }
+    
+    public int getNumOutputs()
+    {
+        return numOutputs;
+    }
+    
+    /**
+     * Runs the server's network on a pattern.
+     * @param input
+     * @param output Receives the output values.
+     * @return output.
+     * @throws IOException If the server cannot be reached.
+     */
+    public double[] predict(double[] input, double[] output)
+            throws IOException
+    {
+        if (input.length < numInputs || output.length < numOutputs)
+            throw new IllegalArgumentException("Arrays too short for the network.");
+        for (int i = 0; i < numInputs; i++)
+        {
+            out.writeDouble(input[i]);
+        }
+        out.flush();
+        for (int k = 0; k < numOutputs; k++)
+        {
+            output[k] = in.readDouble();
+        }
+        return output;
+    }
+    
+    public void close()
+            throws IOException
+    {
+        socket.close();
+    }
+}
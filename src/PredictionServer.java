@@ -0,0 +1,465 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves predictions from a trained network to PredictionClients over TCP.
+ * Each client is read and answered on its own thread, but the network is
+ * run on a single batching thread: requests that arrive while it is busy
+ * are gathered and run together, up to a maximum batch size, so under load
+ * many requests share one forward pass. Nothing is allocated per request.
+ * The latency of each request, from being read to its reply being sent, and
+ * the throughput are recorded, see getStatistics.
+ * <p>
+ * On connecting, the server sends MAGIC and the numbers of inputs and
+ * outputs. Each request is then the inputs as doubles, and each reply the
+ * outputs as doubles.
+ * @author Daniel
+ */
+public class PredictionServer
+{
+    static final int MAGIC = 0x50534f50; // "PSOP"
+    
+    private NeuralNetwork network;
+    private int maxBatch;
+    private long maxWait;
+    
+    private BlockingQueue<Request> queue;
+    private ServerSocket server = null;
+    private Thread batcher = null;
+    private List<Socket> sockets = new ArrayList<Socket>();
+    private volatile boolean closed = false;
+    
+    private final Object statisticsLock = new Object();
+    private long start = System.nanoTime();
+    private long requests = 0;
+    private long batches = 0;
+    private long[] latencies = new long[Statistics.BUCKETS];
+    
+    /**
+     * @param network The network to run. Its weights must not be set while
+     * serving.
+     * @param maxBatch The most requests to run in one pass.
+     * @param maxWaitMicros How long to hold a batch open for more requests
+     * to arrive, or 0 to run whatever has arrived straight away.
+     */
+    public PredictionServer(NeuralNetwork network, int maxBatch, long maxWaitMicros)
+    {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        if (maxWaitMicros < 0)
+            throw new IllegalArgumentException("Wait must not be negative.");
+        this.network = network;
+        this.maxBatch = maxBatch;
+        this.maxWait = maxWaitMicros*1000;
+        // each connection has one request in flight at most
+        queue = new ArrayBlockingQueue<Request>(Math.max(1024, maxBatch));
+    }
+    
+    /**
+     * Serves clients, each on its own thread, until the server is closed.
+     * @param server
+     * @throws IOException If accepting a connection fails.
+     */
+    public void serve(ServerSocket server)
+            throws IOException
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            this.server = server;
+            batcher = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    batch();
+                }
+            }, "PredictionServer batcher");
+            batcher.setDaemon(true);
+            batcher.start();
+        }
+        
+        while (true)
+        {
+            final Socket socket;
+            try
+            {
+                socket = server.accept();
+            }
+            catch (IOException e)
+            {
+                if (closed)
+                    return;
+                throw e;
+            }
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    socket.close();
+                    return;
+                }
+                sockets.add(socket);
+            }
+            
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        session(socket);
+                    }
+                    catch (IOException e)
+                    {
+                        if (!closed)
+                            System.err.println("Client " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                    }
+                    finally
+                    {
+                        synchronized (PredictionServer.this)
+                        {
+                            sockets.remove(socket);
+                        }
+                        try
+                        {
+                            socket.close();
+                        }
+                        catch (IOException e)
+                        {
+                            // already gone
+                        }
+                    }
+                }
+            }, "PredictionServer " + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Stops serving, and disconnects every client.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        try
+        {
+            if (server != null)
+                server.close();
+        }
+        catch (IOException e)
+        {
+            // closing anyway
+        }
+        for (Socket socket : sockets)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // closing anyway
+            }
+        }
+        if (batcher != null)
+            batcher.interrupt();
+    }
+    
+    private void session(Socket socket)
+            throws IOException
+    {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        
+        out.writeInt(MAGIC);
+        out.writeInt(network.getNumInputs());
+        out.writeInt(network.getNumOutputs());
+        out.flush();
+        
+        Request request = new Request();
+        while (true)
+        {
+            try
+            {
+                request.input[0] = in.readDouble();
+            }
+            catch (EOFException e)
+            {
+                return;
+            }
+            for (int i = 1; i < request.input.length; i++)
+            {
+                request.input[i] = in.readDouble();
+            }
+            request.arrived = System.nanoTime();
+            request.done = false;
+            
+            try
+            {
+                queue.put(request);
+                if (!request.await())
+                    throw new IOException(closed ? "Server closed." : "Prediction failed.");
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            for (int k = 0; k < request.output.length; k++)
+            {
+                out.writeDouble(request.output[k]);
+            }
+            out.flush();
+            
+            long latency = System.nanoTime() - request.arrived;
+            synchronized (statisticsLock)
+            {
+                requests++;
+                latencies[Statistics.bucket(latency)]++;
+            }
+        }
+    }
+    
+    // runs requests from the queue until interrupted
+    private void batch()
+    {
+        int numInputs = network.getNumInputs(), numOutputs = network.getNumOutputs();
+        Request[] batch = new Request[maxBatch];
+        double[] inputs = new double[maxBatch*numInputs];
+        double[] outputs = new double[maxBatch*numOutputs];
+        
+        while (!closed)
+        {
+            int count = 0;
+            try
+            {
+                Request first = queue.take();
+                batch[count++] = first;
+                long deadline = System.nanoTime() + maxWait;
+                while (count < maxBatch)
+                {
+                    Request request = queue.poll();
+                    if (request == null)
+                    {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (request = queue.poll(wait, TimeUnit.NANOSECONDS)) == null)
+                            break;
+                    }
+                    batch[count++] = request;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                for (int j = 0; j < count; j++)
+                {
+                    batch[j].finish(true);
+                }
+                return;
+            }
+            
+            boolean failed = false;
+            try
+            {
+                for (int j = 0; j < count; j++)
+                {
+                    System.arraycopy(batch[j].input, 0, inputs, j*numInputs, numInputs);
+                }
+                network.run(inputs, outputs, count);
+                for (int j = 0; j < count; j++)
+                {
+                    System.arraycopy(outputs, j*numOutputs, batch[j].output, 0, numOutputs);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Prediction failed: " + e);
+                failed = true;
+            }
+            for (int j = 0; j < count; j++)
+            {
+                batch[j].finish(failed);
+                batch[j] = null;
+            }
+            synchronized (statisticsLock)
+            {
+                batches++;
+            }
+        }
+    }
+    
+    /**
+     * @return The statistics since the server was created or last reset.
+     */
+    public Statistics getStatistics()
+    {
+        synchronized (statisticsLock)
+        {
+            return new Statistics(requests, batches, System.nanoTime() - start, latencies);
+        }
+    }
+    
+    /**
+     * Starts the statistics again.
+     * @return The statistics up to now.
+     */
+    public Statistics resetStatistics()
+    {
+        synchronized (statisticsLock)
+        {
+            long now = System.nanoTime();
+            Statistics statistics = new Statistics(requests, batches, now - start, latencies);
+            start = now;
+            requests = 0;
+            batches = 0;
+            latencies = new long[Statistics.BUCKETS];
+            return statistics;
+        }
+    }
+    
+    // a connection's request, reused for each one it makes
+    private class Request
+    {
+        private double[] input = new double[network.getNumInputs()];
+        private double[] output = new double[network.getNumOutputs()];
+        private long arrived;
+        private boolean done, failed;
+        
+        private synchronized void finish(boolean failed)
+        {
+            this.failed = failed;
+            done = true;
+            notify();
+        }
+        
+        // waits for the batcher, giving up if the server closes
+        private synchronized boolean await()
+                throws InterruptedException
+        {
+            while (!done)
+            {
+                if (closed)
+                    return false;
+                wait(100);
+            }
+            return !failed;
+        }
+    }
+    
+    /**
+     * The requests served over a period, and how long they took.
+     * Latencies are kept in buckets an eighth of a power of two wide, so
+     * percentiles are accurate to within 12.5%.
+     */
+    public static class Statistics
+    {
+        // 0 to 7ns exactly, then 8 buckets for each power of two up to 2^63ns
+        private static final int BUCKETS = 61*8;
+        
+        private long requests;
+        private long batches;
+        private long nanos;
+        private long[] latencies;
+        
+        private Statistics(long requests, long batches, long nanos, long[] latencies)
+        {
+            this.requests = requests;
+            this.batches = batches;
+            this.nanos = nanos;
+            this.latencies = latencies.clone();
+        }
+        
+        // the bucket for a latency: 0 to 7 exactly, then 8 to a power of two
+        private static int bucket(long nanos)
+        {
+            if (nanos < 8)
+                return (int)Math.max(nanos, 0);
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return (exponent - 2)*8 + (int)(nanos >>> (exponent - 3) & 7);
+        }
+        
+        // the largest latency in a bucket
+        private static long upperBound(int bucket)
+        {
+            if (bucket < 8)
+                return bucket;
+            int exponent = bucket/8 + 2;
+            return ((9L + bucket%8) << (exponent - 3)) - 1;
+        }
+        
+        public long getRequests()
+        {
+            return requests;
+        }
+        
+        public long getBatches()
+        {
+            return batches;
+        }
+        
+        public double getMeanBatchSize()
+        {
+            return batches == 0 ? 0 : (double)requests/batches;
+        }
+        
+        /**
+         * @return Requests served per second.
+         */
+        public double getThroughput()
+        {
+            return nanos == 0 ? 0 : requests/(nanos/1e9);
+        }
+        
+        /**
+         * @param percentile From 0 to 100.
+         * @return The latency within which that percentage of requests were
+         * served, in microseconds, or 0 if there were none.
+         */
+        public double getLatency(double percentile)
+        {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("Percentile must be from 0 to 100.");
+            long total = 0;
+            for (long count : latencies)
+            {
+                total += count;
+            }
+            if (total == 0)
+                return 0;
+            
+            long rank = Math.max(1, (long)Math.ceil(percentile/100*total));
+            long seen = 0;
+            for (int b = 0; b < latencies.length; b++)
+            {
+                seen += latencies[b];
+                if (seen >= rank)
+                    return upperBound(b)/1000.0;
+            }
+            return upperBound(latencies.length - 1)/1000.0;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return String.format("%d requests, %.0f/s, %.1f per batch, latency p50 %.0fus p99 %.0fus",
+                    requests, getThroughput(), getMeanBatchSize(), getLatency(50), getLatency(99));
+        }
+    }
+}
@@ -0,0 +1,386 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The coordinator's side of distributed fitness evaluation.
+ * Positions are sent in batches to EvaluationWorker processes, which score
+ * them on their own copy of the data set and send back the fitness of each.
+ * Every worker is kept a batch ahead, so it can start on its next batch as
+ * soon as it sends the results of the last. If a worker drops, or sends
+ * nothing back for too long while it has batches, the batches it had are
+ * sent to the others; evaluation only fails once every worker has dropped.
+ * @author Daniel
+ */
+public class RemoteEvaluator
+{
+    // batches in flight per worker
+    private static final int WINDOW = 2;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int TIMEOUT = 60000;
+
+    private InetSocketAddress[] addresses;
+    private int batchSize;
+    private long timeout = TIMEOUT*1000000L;
+
+    private List<Connection> connections = new ArrayList<Connection>();
+    private BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();
+
+    // the id of the first batch of the next evaluation
+    private int nextId = 0;
+
+    /**
+     * @param addresses Where the workers are listening.
+     * @param batchSize Number of positions sent to a worker at a time.
+     */
+    public RemoteEvaluator(InetSocketAddress[] addresses, int batchSize)
+    {
+        if (addresses.length == 0)
+            throw new IllegalArgumentException("There must be at least one worker.");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        this.addresses = addresses;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets how long a worker may go without sending back any results while
+     * it has batches to evaluate, before it is taken to have hung and is
+     * dropped. The default is a minute.
+     * @param timeout In milliseconds.
+     */
+    public void setTimeout(int timeout)
+    {
+        if (timeout < 1)
+            throw new IllegalArgumentException("Timeout must be at least 1.");
+        this.timeout = timeout*1000000L;
+    }
+
+    /**
+     * Connects to the workers and tells them what to evaluate. Workers that
+     * cannot be reached are left out.
+     * @param network A network like the ones to evaluate.
+     * @param trainingData The patterns to evaluate on, a subset of a data set
+     * read from the same file the workers read.
+     * @throws IOException If no worker could be reached.
+     */
+    public void connect(NeuralNetwork network, DataSet trainingData)
+            throws IOException
+    {
+        close();
+
+        IOException error = null;
+        for (InetSocketAddress address : addresses)
+        {
+            try
+            {
+                Connection connection = new Connection(address);
+                connection.start(network, trainingData);
+                connections.add(connection);
+            }
+            catch (IOException e)
+            {
+                error = e;
+                System.err.println("Worker " + address + " not used: " + e.getMessage());
+            }
+        }
+        if (connections.isEmpty())
+            throw new IOException("Could not connect to any worker.", error);
+    }
+
+    /**
+     * Calculates the fitness of a number of positions on the workers.
+     * @param positions The positions to evaluate.
+     * @param results Receives the fitness of each position.
+     * @param start First training pattern to evaluate on, inclusive.
+     * @param end Last training pattern to evaluate on, exclusive.
+     */
+    public void evaluate(double[][] positions, double[] results, int start, int end)
+    {
+        int numBatches = (positions.length + batchSize - 1) / batchSize;
+        int firstId = nextId;
+        nextId += numBatches;
+
+        Queue<Integer> queue = new ArrayDeque<Integer>(numBatches);
+        for (int b = 0; b < numBatches; b++)
+        {
+            queue.add(b);
+        }
+        boolean[] done = new boolean[numBatches];
+        int remaining = numBatches;
+
+        send(queue, positions, firstId, start, end);
+        while (remaining > 0)
+        {
+            long wait = dropHung(queue);
+            send(queue, positions, firstId, start, end);
+            if (connections.isEmpty())
+                throw new RuntimeException("Every worker has dropped.");
+
+            Event event;
+            try
+            {
+                event = events.poll(wait, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Fitness evaluation interrupted.", e);
+            }
+            if (event == null)
+                continue; // some worker is overdue
+
+            Connection connection = event.connection;
+            if (!connections.contains(connection))
+                continue; // dropped already
+
+            if (event.results == null)
+            {
+                drop(connection, queue, event.error);
+            }
+            else
+            {
+                connection.lastHeard = System.nanoTime();
+                int b = event.id - firstId;
+                if (b >= 0 && b < numBatches && !done[b])
+                {
+                    System.arraycopy(event.results, 0, results, b*batchSize, event.results.length);
+                    done[b] = true;
+                    remaining--;
+                }
+                connection.pending.remove(Integer.valueOf(b));
+            }
+            send(queue, positions, firstId, start, end);
+        }
+    }
+
+    // tops up every worker with batches from the queue
+    private void send(Queue<Integer> queue, double[][] positions, int firstId, int start, int end)
+    {
+        for (int c = 0; c < connections.size() && !queue.isEmpty();)
+        {
+            Connection connection = connections.get(c);
+            try
+            {
+                while (connection.pending.size() < WINDOW && !queue.isEmpty())
+                {
+                    if (connection.pending.isEmpty())
+                        connection.lastHeard = System.nanoTime();
+                    int b = queue.poll();
+                    connection.pending.add(b);
+                    int from = b*batchSize;
+                    int to = Math.min(from + batchSize, positions.length);
+                    connection.send(firstId + b, start, end, positions, from, to);
+                }
+                c++;
+            }
+            catch (IOException e)
+            {
+                drop(connection, queue, e);
+            }
+        }
+    }
+
+    // Drops every worker that has had batches for longer than the timeout
+    // without sending results, returning how long until the next is due.
+    private long dropHung(Queue<Integer> queue)
+    {
+        long now = System.nanoTime();
+        long wait = timeout;
+        for (int c = 0; c < connections.size();)
+        {
+            Connection connection = connections.get(c);
+            long left = connection.lastHeard + timeout - now;
+            if (connection.pending.isEmpty())
+            {
+                c++;
+            }
+            else if (left <= 0)
+            {
+                drop(connection, queue, new IOException("No results for " + timeout/1000000 + " ms"));
+            }
+            else
+            {
+                wait = Math.min(wait, left);
+                c++;
+            }
+        }
+        return wait;
+    }
+
+    // gives a dropped worker's batches back to the queue
+    private void drop(Connection connection, Queue<Integer> queue, IOException error)
+    {
+        System.err.println("Worker " + connection.address + " dropped: " + error.getMessage());
+        connections.remove(connection);
+        queue.addAll(connection.pending);
+        connection.close();
+    }
+
+    /**
+     * Disconnects from the workers.
+     */
+    public void close()
+    {
+        for (Connection connection : connections)
+        {
+            try
+            {
+                connection.out.writeInt(EvaluationWorker.END);
+                connection.out.flush();
+            }
+            catch (IOException e)
+            {
+                // closing anyway
+            }
+            connection.close();
+        }
+        connections.clear();
+        events.clear();
+    }
+
+    // a batch of results, or the failure of a connection if results is null
+    private static class Event
+    {
+        private Connection connection;
+        private int id;
+        private double[] results;
+        private IOException error;
+    }
+
+    private class Connection
+    {
+        private InetSocketAddress address;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private List<Integer> pending = new ArrayList<Integer>(WINDOW);
+        // when the worker last sent results, or was given work when idle
+        private long lastHeard;
+        private volatile boolean closed = false;
+
+        private Connection(InetSocketAddress address)
+                throws IOException
+        {
+            this.address = address;
+            socket = new Socket();
+            socket.connect(address, CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private void start(NeuralNetwork network, DataSet trainingData)
+                throws IOException
+        {
+            try
+            {
+                out.writeInt(EvaluationWorker.MAGIC);
+                out.writeInt(network.getNumInputs());
+                out.writeInt(network.getNumHiddenUnits());
+                out.writeInt(network.getNumOutputs());
+                out.writeUTF(network.getActivationFunction().getClass().getName());
+                out.writeInt(trainingData.getOutputData().length);
+                out.writeInt(trainingData.getSize());
+                for (int p = 0; p < trainingData.getSize(); p++)
+                {
+                    out.writeInt(trainingData.getRow(p));
+                }
+                out.flush();
+
+                if (in.readInt() != EvaluationWorker.OK)
+                    throw new IOException(in.readUTF());
+            }
+            catch (IOException e)
+            {
+                close();
+                throw e;
+            }
+
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    receive();
+                }
+            }, "RemoteEvaluator " + address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void send(int id, int start, int end, double[][] positions, int from, int to)
+                throws IOException
+        {
+            out.writeInt(id);
+            out.writeInt(start);
+            out.writeInt(end);
+            out.writeInt(to - from);
+            out.writeInt(positions[from].length);
+            for (int j = from; j < to; j++)
+            {
+                for (int i = 0; i < positions[j].length; i++)
+                {
+                    out.writeDouble(positions[j][i]);
+                }
+            }
+            out.flush();
+        }
+
+        // reads results until the connection closes
+        private void receive()
+        {
+            try
+            {
+                while (true)
+                {
+                    Event event = new Event();
+                    event.connection = this;
+                    event.id = in.readInt();
+                    event.results = new double[in.readInt()];
+                    for (int j = 0; j < event.results.length; j++)
+                    {
+                        event.results[j] = in.readDouble();
+                    }
+                    events.add(event);
+                }
+            }
+            catch (IOException e)
+            {
+                if (!closed)
+                {
+                    Event event = new Event();
+                    event.connection = this;
+                    event.error = e;
+                    events.add(event);
+                }
+            }
+        }
+
+        private void close()
+        {
+            closed = true;
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // nothing more to do
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small, fast random number generator (SplitMix64) that is not shared
+ * between threads.
+ * Unlike Math.random(), which every thread draws from through one shared
+ * generator, each particle or worker gets its own Rng, split from a master
+ * generator. Runs started from the same seed then draw the same numbers
+ * whichever thread does the drawing. The whole state is one long, so it can
+ * be saved and restored.
+ * @author Daniel
+ */
+public class Rng
+{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // seeds generators created without one
+    private static final AtomicLong seeder = new AtomicLong(mix(System.nanoTime()));
+
+    private long state;
+
+    /**
+     * Creates a generator with a seed that differs every time.
+     */
+    public Rng()
+    {
+        this(mix(seeder.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime()));
+    }
+
+    /**
+     * Creates a generator that always gives the same numbers for the same
+     * seed.
+     * @param seed
+     */
+    public Rng(long seed)
+    {
+        state = seed;
+    }
+
+    public long nextLong()
+    {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    /**
+     * @return A number uniformly distributed in [0,1).
+     */
+    public double nextDouble()
+    {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Creates a new generator whose numbers are independent of this one's.
+     * @return The new generator.
+     */
+    public Rng split()
+    {
+        return new Rng(mix(nextLong()));
+    }
+
+    public long getState()
+    {
+        return state;
+    }
+
+    public void setState(long state)
+    {
+        this.state = state;
+    }
+
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Decides when a Particle Swarm Optimisation should stop before its maximum
+ * number of iterations. Conditions are checked after every iteration, and
+ * can be combined with And and Or. During an asynchronous run other threads
+ * carry on moving particles while a condition is checked, so conditions
+ * should read the best found through PSO.getBestFitness and getBestValues.
+ * @author Daniel
+ */
+public abstract class StoppingCondition
+{
+    /**
+     * Called when optimisation starts. Does nothing by default.
+     * @param pso The PSO being run.
+     */
+    public void start(PSO pso)
+    {
+    }
+
+    /**
+     * @param pso The PSO being run.
+     * @param i The iteration just finished.
+     * @return Whether the PSO should stop now.
+     */
+    public abstract boolean isMet(PSO pso, int i);
+
+    /**
+     * Checks the condition, and finds out which one stopped the PSO.
+     * @param pso The PSO being run.
+     * @param i The iteration just finished.
+     * @return The condition that was met, which may be part of this one, or
+     * null if the PSO should carry on.
+     */
+    public StoppingCondition check(PSO pso, int i)
+    {
+        return isMet(pso, i) ? this : null;
+    }
+
+    /**
+     * Stops once a length of time has passed since optimisation started.
+     */
+    public static class Deadline extends StoppingCondition
+    {
+        private long millis;
+        private long start;
+
+        public Deadline(long millis)
+        {
+            this.millis = millis;
+        }
+
+        @Override
+        public void start(PSO pso)
+        {
+            start = System.nanoTime();
+        }
+
+        @Override
+        public boolean isMet(PSO pso, int i)
+        {
+            return System.nanoTime() - start >= millis*1000000L;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("time limit of %.1fs", millis/1000.0);
+        }
+    }
+
+    /**
+     * Stops once a number of fitness evaluations have been done, including
+     * those of the initial positions.
+     */
+    public static class Evaluations extends StoppingCondition
+    {
+        private long maxEvaluations;
+
+        public Evaluations(long maxEvaluations)
+        {
+            this.maxEvaluations = maxEvaluations;
+        }
+
+        @Override
+        public boolean isMet(PSO pso, int i)
+        {
+            return pso.getEvaluations() >= maxEvaluations;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "limit of " + maxEvaluations + " evaluations";
+        }
+    }
+
+    /**
+     * Stops once the best fitness found has not improved by more than a
+     * tolerance for a number of iterations.
+     */
+    public static class Stagnation extends StoppingCondition
+    {
+        private int iterations;
+        private double tolerance;
+
+        // the fitness to beat, and when it was set
+        private double reference;
+        private int improved;
+
+        /**
+         * @param iterations Iterations without improvement to allow.
+         * @param tolerance Improvements this size or smaller do not count.
+         */
+        public Stagnation(int iterations, double tolerance)
+        {
+            if (iterations < 1)
+                throw new IllegalArgumentException("Iterations must be at least 1.");
+            this.iterations = iterations;
+            this.tolerance = tolerance;
+        }
+
+        @Override
+        public void start(PSO pso)
+        {
+            reference = Double.POSITIVE_INFINITY;
+            improved = 0;
+        }
+
+        @Override
+        public boolean isMet(PSO pso, int i)
+        {
+            double best = pso.getBestFitness();
+            if (best < reference - tolerance || reference == Double.POSITIVE_INFINITY)
+            {
+                reference = best;
+                improved = i;
+            }
+            return i - improved >= iterations;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("no improvement over %g in %d iterations", tolerance, iterations);
+        }
+    }
+
+    /**
+     * Stops once the best fitness found is at or below a target.
+     */
+    public static class Fitness extends StoppingCondition
+    {
+        private double target;
+
+        public Fitness(double target)
+        {
+            this.target = target;
+        }
+
+        @Override
+        public boolean isMet(PSO pso, int i)
+        {
+            return pso.getBestFitness() <= target;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("target fitness of %g", target);
+        }
+    }
+
+    /**
+     * Stops once all of a number of conditions are met.
+     */
+    public static class And extends StoppingCondition
+    {
+        private StoppingCondition[] conditions;
+
+        public And(StoppingCondition... conditions)
+        {
+            this.conditions = conditions;
+        }
+
+        @Override
+        public void start(PSO pso)
+        {
+            for (StoppingCondition condition : conditions)
+            {
+                condition.start(pso);
+            }
+        }
+
+        @Override
+        public boolean isMet(PSO pso, int i)
+        {
+            // every condition is checked, to keep their state up to date
+            boolean met = true;
+            for (StoppingCondition condition : conditions)
+            {
+                met &= condition.isMet(pso, i);
+            }
+            return met;
+        }
+
+        @Override
+        public String toString()
+        {
+            return join(conditions, " and ");
+        }
+    }
+
+    /**
+     * Stops once any of a number of conditions is met.
+     */
+    public static class Or extends StoppingCondition
+    {
+        private StoppingCondition[] conditions;
+
+        public Or(StoppingCondition... conditions)
+        {
+            this.conditions = conditions;
+        }
+
+        @Override
+        public void start(PSO pso)
+        {
+            for (StoppingCondition condition : conditions)
+            {
+                condition.start(pso);
+            }
+        }
+
+        @Override
+        public boolean isMet(PSO pso, int i)
+        {
+            return check(pso, i) != null;
+        }
+
+        @Override
+        public StoppingCondition check(PSO pso, int i)
+        {
+            // every condition is checked, to keep their state up to date
+            StoppingCondition met = null;
+            for (StoppingCondition condition : conditions)
+            {
+                StoppingCondition result = condition.check(pso, i);
+                if (met == null)
+                    met = result;
+            }
+            return met;
+        }
+
+        @Override
+        public String toString()
+        {
+            return join(conditions, " or ");
+        }
+    }
+
+    private static String join(StoppingCondition[] conditions, String separator)
+    {
+        StringBuilder result = new StringBuilder("(");
+        for (int i = 0; i < conditions.length; i++)
+        {
+            if (i > 0)
+                result.append(separator);
+            result.append(conditions[i]);
+        }
+        return result.append(")").toString();
+    }
+}
@@ -1,3 +1,8 @@
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  *
  * @author Daniel
@@ -5,23 +10,119 @@
 public abstract class Topology
 {
     protected Particle[] population;
-    
+
+    // the best published position in the whole swarm, for asynchronous use
+    private final AtomicReference<Slot> published = new AtomicReference<Slot>();
+
+    /**
+     * Called once every particle's fitness has been updated, to bring the
+     * neighbourhood bests up to date.
+     */
     public abstract void update();
-    
+
     public abstract double[] getBest(int i);
-    
+
+    /**
+     * Reports that a particle's fitness has just been updated. The optimiser
+     * reports every particle, in order, before calling update(), so
+     * topologies can keep track of their bests as they go rather than
+     * scanning the population again. Does nothing by default.
+     * @param i The particle.
+     */
+    public void report(int i)
+    {
+    }
+
     public void setPopulation(Particle[] population)
     {
         this.population = population;
     }
-    
+
+    /**
+     * Publishes a new personal best, for the asynchronous PSO. May be called
+     * from several threads at once. By default this keeps the best position
+     * published by any particle.
+     * @param i The particle.
+     * @param fitness Its personal best fitness.
+     * @param values Its personal best position, which must not be changed
+     * afterwards.
+     */
+    public void publish(int i, double fitness, double[] values)
+    {
+        Slot.offer(published, fitness, values);
+    }
+
+    /**
+     * Gets the best position published in a particle's neighbourhood, for the
+     * asynchronous PSO. May be called from several threads at once.
+     * @param i The particle.
+     * @return The position, which must not be changed.
+     */
+    public double[] getPublishedBest(int i)
+    {
+        return published.get().values;
+    }
+
+    /**
+     * A published position and its fitness, which never change once
+     * published, so threads can exchange them without locking.
+     */
+    static class Slot
+    {
+        final double fitness;
+        final double[] values;
+
+        Slot(double fitness, double[] values)
+        {
+            this.fitness = fitness;
+            this.values = values;
+        }
+
+        /**
+         * Puts a position in a slot if the slot is empty or holds a worse one.
+         * @return true if the position was put in the slot.
+         */
+        static boolean offer(AtomicReference<Slot> slot, double fitness, double[] values)
+        {
+            Slot next = new Slot(fitness, values);
+            while (true)
+            {
+                Slot current = slot.get();
+                if (current != null && !(fitness < current.fitness))
+                    return false;
+                if (slot.compareAndSet(current, next))
+                    return true;
+            }
+        }
+    }
+
     public static class Star extends Topology
     {
         private int best = 0;
 
+        // best of the particles reported so far this pass, or -1
+        private int next = -1;
+
+        @Override
+        public void report(int i)
+        {
+            if (next < 0 || population[i].getFitness() < population[next].getFitness())
+            {
+                next = i;
+            }
+        }
+
         @Override
         public void update()
         {
+            if (next >= 0)
+            {
+                best = next;
+                next = -1;
+                return;
+            }
+
+            // nothing was reported, so look for the best
             best = 0;
             for (int i = 1; i < population.length; i++)
             {
@@ -37,14 +138,28 @@ public abstract class Topology
         {
             return population[best].getValues();
         }
-        
+
     }
-    
+
+    /**
+     * Each particle's neighbourhood is itself and the particles up to
+     * neighbourhood places either side of it, wrapping around at the ends.
+     */
     public static class Ring extends Topology
     {
         private int neighbourhood;
         private int[] best;
 
+        // particle at each position of the unwrapped ring -k..n-1+k
+        private int[] index;
+
+        // the sliding window: positions in order, with increasing fitness
+        private int[] window;
+        private double[] windowFitness;
+
+        // each particle's published personal best, for asynchronous use
+        private AtomicReferenceArray<Slot> published;
+
         public Ring(int neighbourhood)
         {
             this.neighbourhood = neighbourhood;
@@ -53,6 +168,8 @@ public abstract class Topology
         public void setNeighbourhood(int neighbourhood)
         {
             this.neighbourhood = neighbourhood;
+            if (population != null)
+                createTables();
         }
 
         @Override
@@ -60,34 +177,95 @@ public abstract class Topology
         {
             super.setPopulation(population);
             best = new int[population.length];
+            published = new AtomicReferenceArray<Slot>(population.length);
+            createTables();
+        }
+
+        @Override
+        public void publish(int i, double fitness, double[] values)
+        {
+            published.set(i, new Slot(fitness, values));
         }
 
+        @Override
+        public double[] getPublishedBest(int i)
+        {
+            int n = population.length;
+            int k = Math.min(neighbourhood, n/2);
+            int offset = (index.length - n)/2;
+            Slot best = published.get(i);
+            for (int j = 1; j <= k; j++)
+            {
+                Slot slot = published.get(index[offset + i - j]);
+                if (slot.fitness < best.fitness)
+                    best = slot;
+                slot = published.get(index[offset + i + j]);
+                if (slot.fitness < best.fitness)
+                    best = slot;
+            }
+            return best.values;
+        }
+
+        private void createTables()
+        {
+            int n = population.length;
+            int k = Math.min(neighbourhood, n);
+            index = new int[n + 2*k];
+            for (int p = 0; p < index.length; p++)
+            {
+                index[p] = ((p - k) % n + n) % n;
+            }
+            window = new int[index.length];
+            windowFitness = new double[index.length];
+        }
+
+        /**
+         * Finds the best of each neighbourhood with a sliding window minimum
+         * over the ring, which takes O(n) time whatever the neighbourhood
+         * size.
+         */
         @Override
         public void update()
         {
-            for (int i = 0; i < population.length; i++)
+            int n = population.length;
+            int k = neighbourhood;
+
+            if (2*k + 1 >= n)
             {
-                best[i] = 0;
-                for (int j = 1; j <= neighbourhood; j++)
+                // every neighbourhood is the whole ring
+                int b = 0;
+                for (int i = 1; i < n; i++)
                 {
-                    int k = wrap(i-j);
-                    if (population[k].getFitness() < population[best[i]].getFitness())
+                    if (population[i].getFitness() < population[b].getFitness())
                     {
-                        best[i] = k;
-                    }
-                    k = wrap(i+j);
-                    if (population[k].getFitness() < population[best[i]].getFitness())
-                    {
-                        best[i] = k;
+                        b = i;
                     }
                 }
+                Arrays.fill(best, b);
+                return;
+            }
+
+            int first = 0, last = 0;
+            for (int p = 0; p < index.length; p++)
+            {
+                double fitness = population[index[p]].getFitness();
+                while (last > first && windowFitness[last-1] > fitness)
+                {
+                    last--;
+                }
+                window[last] = p;
+                windowFitness[last] = fitness;
+                last++;
+
+                // the window p-2k..p is the neighbourhood of particle p-2k
+                int i = p - 2*k;
+                if (i >= 0)
+                {
+                    if (window[first] < i)
+                        first++;
+                    best[i] = index[window[first]];
+                }
             }
-        }
-        
-        private int wrap(int i)
-        {
-            if (i < 0) return wrap(i + population.length);
-            return i % population.length;
         }
 
         @Override
@@ -95,6 +273,6 @@ public abstract class Topology
         {
             return population[best[i]].getValues();
         }
-        
+
     }
 }
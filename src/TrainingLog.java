@@ -0,0 +1,276 @@
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes training statistics on a background thread.
+ * The optimiser hands over each iteration's figures as primitives, which are
+ * stored in a fixed ring buffer without allocating or locking. A consumer
+ * thread formats them and writes them out, flushing regularly so that little
+ * is lost if the process dies. Records must all be logged from one thread.
+ * @author Daniel
+ */
+public class TrainingLog
+{
+    /**
+     * How records are written.
+     */
+    public enum Format
+    {
+        /**
+         * The tab-separated .results format: iteration, training MSE,
+         * training accuracy, testing MSE and testing accuracy.
+         */
+        RESULTS,
+
+        /**
+         * Comma-separated values at full precision, with a header row and
+         * the time of each record in nanoseconds since the log was opened.
+         */
+        CSV,
+
+        /**
+         * Big-endian binary records: int iteration, long nanoseconds since
+         * the log was opened, then the four statistics as doubles.
+         */
+        BINARY
+    }
+
+    private static final long FLUSH_INTERVAL = 1000000000L; // 1 second
+    private static final long IDLE_WAIT = 1000000L; // 1 millisecond
+
+    private final Format format;
+    private final PrintWriter text;
+    private final DataOutputStream binary;
+
+    // the ring buffer, one array per field
+    private final int mask;
+    private final int[] iterations;
+    private final long[] times;
+    private final double[] trainingMSEs;
+    private final double[] trainingAccuracies;
+    private final double[] testingMSEs;
+    private final double[] testingAccuracies;
+
+    // records [head, tail) are waiting to be written
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final long start = System.nanoTime();
+    private volatile boolean closed = false;
+    private volatile IOException error = null;
+    private final Thread consumer;
+
+    /**
+     * Opens a log with room for 4096 records in flight.
+     * @param out Where to write the records.
+     * @param format How to write them.
+     */
+    public TrainingLog(OutputStream out, Format format)
+    {
+        this(out, format, 4096);
+    }
+
+    /**
+     * Opens a log.
+     * @param out Where to write the records.
+     * @param format How to write them.
+     * @param capacity Number of records that can be waiting to be written,
+     * rounded up to a power of two. Logging waits when the buffer is full.
+     */
+    public TrainingLog(OutputStream out, Format format, int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        iterations = new int[size];
+        times = new long[size];
+        trainingMSEs = new double[size];
+        trainingAccuracies = new double[size];
+        testingMSEs = new double[size];
+        testingAccuracies = new double[size];
+
+        this.format = format;
+        if (format == Format.BINARY)
+        {
+            text = null;
+            binary = new DataOutputStream(new BufferedOutputStream(out));
+        }
+        else
+        {
+            text = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(out)));
+            binary = null;
+            if (format == Format.CSV)
+                text.print("iteration,time,training_mse,training_accuracy,testing_mse,testing_accuracy\n");
+        }
+
+        consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                consume();
+            }
+        }, "TrainingLog");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Logs one iteration's statistics. Waits if the buffer is full.
+     * @param iteration
+     * @param trainingMSE
+     * @param trainingAccuracy Fraction of training patterns classified correctly.
+     * @param testingMSE
+     * @param testingAccuracy Fraction of testing patterns classified correctly.
+     */
+    public void log(int iteration, double trainingMSE, double trainingAccuracy,
+            double testingMSE, double testingAccuracy)
+    {
+        if (closed)
+            throw new IllegalStateException("The log is closed.");
+
+        long sequence = tail.get();
+        while (sequence - head.get() > mask)
+        {
+            // full; wait for the consumer to catch up
+            Thread.yield();
+        }
+
+        int slot = (int)sequence & mask;
+        iterations[slot] = iteration;
+        times[slot] = System.nanoTime() - start;
+        trainingMSEs[slot] = trainingMSE;
+        trainingAccuracies[slot] = trainingAccuracy;
+        testingMSEs[slot] = testingMSE;
+        testingAccuracies[slot] = testingAccuracy;
+
+        // publish the record to the consumer
+        tail.lazySet(sequence + 1);
+    }
+
+    /**
+     * Writes out everything logged so far, and closes the output.
+     * @throws IOException If writing failed at any point.
+     */
+    public void close()
+            throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        LockSupport.unpark(consumer);
+        try
+        {
+            consumer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (text != null)
+        {
+            text.close();
+            if (text.checkError() && error == null)
+                error = new IOException("Could not write the training log.");
+        }
+        else
+        {
+            binary.close();
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private void consume()
+    {
+        long lastFlush = System.nanoTime();
+        try
+        {
+            while (true)
+            {
+                // read closed before tail so nothing logged before close()
+                // is missed
+                boolean finished = closed;
+                long end = tail.get();
+                long sequence = head.get();
+
+                for (; sequence < end; sequence++)
+                {
+                    write((int)sequence & mask);
+                    head.lazySet(sequence + 1);
+                }
+
+                long now = System.nanoTime();
+                if (now - lastFlush >= FLUSH_INTERVAL || finished)
+                {
+                    flush();
+                    lastFlush = now;
+                }
+
+                if (finished)
+                    return;
+                if (sequence == end)
+                    LockSupport.parkNanos(this, IDLE_WAIT);
+            }
+        }
+        catch (IOException e)
+        {
+            error = e;
+            // keep the producer from waiting on a consumer that has stopped
+            head.set(Long.MAX_VALUE / 2);
+        }
+    }
+
+    private void write(int slot)
+            throws IOException
+    {
+        switch (format)
+        {
+            case RESULTS:
+                text.printf("%d\t%g\t%.1f%%\t%g\t%.1f%%\n", iterations[slot],
+                        trainingMSEs[slot], trainingAccuracies[slot]*100,
+                        testingMSEs[slot], testingAccuracies[slot]*100);
+                break;
+            case CSV:
+                text.print(iterations[slot] + "," + times[slot] + ","
+                        + trainingMSEs[slot] + "," + trainingAccuracies[slot] + ","
+                        + testingMSEs[slot] + "," + testingAccuracies[slot] + "\n");
+                break;
+            case BINARY:
+                binary.writeInt(iterations[slot]);
+                binary.writeLong(times[slot]);
+                binary.writeDouble(trainingMSEs[slot]);
+                binary.writeDouble(trainingAccuracies[slot]);
+                binary.writeDouble(testingMSEs[slot]);
+                binary.writeDouble(testingAccuracies[slot]);
+                break;
+        }
+    }
+
+    private void flush()
+            throws IOException
+    {
+        if (text != null)
+        {
+            text.flush();
+            if (text.checkError())
+                throw new IOException("Could not write the training log.");
+        }
+        else
+        {
+            binary.flush();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class DataSetTest
+{
+
+    /**
+     * Test of the DataSet(File) constructor on a file with a bad value.
+     */
+    @Test
+    public void testReadInvalid() throws IOException
+    {
+        System.out.println("DataSet(File)");
+        File file = File.createTempFile("dataset", ".txt");
+        file.deleteOnExit();
+        FileWriter out = new FileWriter(file);
+        out.write("2 2\n1 2 a\n\n3 x b\n");
+        out.close();
+        
+        try
+        {
+            new DataSet(file);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(":4 "));
+        }
+    }
+
+    /**
+     * Test of load method, of class DataSet, reading back its own cache.
+     */
+    @Test
+    public void testLoad() throws IOException
+    {
+        System.out.println("load");
+        File file = File.createTempFile("dataset", ".txt");
+        file.deleteOnExit();
+        DataSetCache.getCacheFile(file).deleteOnExit();
+        FileWriter out = new FileWriter(file);
+        out.write("2 2\n1 2 a\n3 4.5 b\n-6 .7 a\n");
+        out.close();
+        
+        DataSet parsed = DataSet.load(file);
+        assertTrue(DataSetCache.getCacheFile(file).isFile());
+        DataSet cached = DataSetCache.read(file);
+        assertNotNull(cached);
+        assertEquals(3, cached.getSize());
+        assertArrayEquals(parsed.getOutputNames(), cached.getOutputNames());
+        for (int p = 0; p < parsed.getSize(); p++)
+        {
+            assertArrayEquals(parsed.getPattern(p).getInputs(), cached.getPattern(p).getInputs(), 0.0);
+            assertEquals(parsed.getPattern(p).getOutputIndex(), cached.getPattern(p).getOutputIndex());
+        }
+        
+        // changing the source invalidates the cache
+        out = new FileWriter(file, true);
+        out.write("8 9 b\n");
+        out.close();
+        assertNull(DataSetCache.read(file));
+        assertEquals(4, DataSet.load(file).getSize());
+    }
+
+    /**
+     * Test of load method, and of ChunkedDataSet, with a truncated or
+     * corrupt cache, which must be parsed again and rewritten.
+     */
+    @Test
+    public void testLoadCorrupt() throws IOException
+    {
+        System.out.println("load corrupt");
+        File file = File.createTempFile("dataset", ".txt");
+        file.deleteOnExit();
+        File cache = DataSetCache.getCacheFile(file);
+        cache.deleteOnExit();
+        FileWriter out = new FileWriter(file);
+        out.write("2 2\n1 2 a\n3 4.5 b\n-6 .7 a\n");
+        out.close();
+        
+        DataSet parsed = DataSet.load(file);
+        long length = cache.length();
+        for (long truncated : new long[]{length - 1, 48, 40, 20, 0})
+        {
+            RandomAccessFile raf = new RandomAccessFile(cache, "rw");
+            raf.setLength(truncated);
+            raf.close();
+            assertNull(DataSetCache.read(file));
+            
+            DataSet loaded = DataSet.load(file);
+            assertEquals(3, loaded.getSize());
+            for (int p = 0; p < parsed.getSize(); p++)
+            {
+                assertArrayEquals(parsed.getPattern(p).getInputs(), loaded.getPattern(p).getInputs(), 0.0);
+                assertEquals(parsed.getPattern(p).getOutputIndex(), loaded.getPattern(p).getOutputIndex());
+            }
+            assertEquals(length, cache.length());
+            assertNotNull(DataSetCache.read(file));
+        }
+        
+        // a class out of range
+        RandomAccessFile raf = new RandomAccessFile(cache, "rw");
+        raf.seek(length - 4);
+        raf.writeInt(99);
+        raf.close();
+        assertNull(DataSetCache.read(file));
+        assertEquals(parsed.getPattern(2).getOutputIndex(), DataSet.load(file).getPattern(2).getOutputIndex());
+        assertNotNull(DataSetCache.read(file));
+        
+        raf = new RandomAccessFile(cache, "rw");
+        raf.setLength(length - 4);
+        raf.close();
+        assertEquals(3, new ChunkedDataSet(file, 2).getSize());
+        assertEquals(length, cache.length());
+    }
+
+    /**
+     * Test of ChunkedDataSet passes, which reuse their reader whichever
+     * subset they read and however far they got.
+     */
+    @Test
+    public void testChunkedPasses() throws IOException
+    {
+        System.out.println("ChunkedDataSet.open");
+        File file = File.createTempFile("dataset", ".txt");
+        file.deleteOnExit();
+        DataSetCache.getCacheFile(file).deleteOnExit();
+        FileWriter out = new FileWriter(file);
+        out.write("1 2\n");
+        for (int p = 0; p < 100; p++)
+        {
+            out.write(p + (p % 3 == 0 ? " a\n" : " b\n"));
+        }
+        out.close();
+        
+        ChunkedDataSet chunks = new ChunkedDataSet(file, 3);
+        int readers = countReaders();
+        for (int pass = 0; pass < 20; pass++)
+        {
+            int start = pass*3;
+            ChunkedDataSet subset = chunks.getSubset(start, start + 40);
+            ChunkedDataSet.Reader reader = subset.open();
+            int p = start;
+            // stop some passes early
+            int end = pass % 2 == 0 ? start + 40 : start + 10;
+            DataSet block;
+            while (p < end && (block = reader.next()) != null)
+            {
+                for (int i = 0; i < block.getSize(); i++, p++)
+                {
+                    assertEquals(p, block.getPattern(i).getInputs()[0], 0.0);
+                    assertEquals(p % 3 == 0 ? 0 : 1, block.getPattern(i).getOutputIndex());
+                }
+            }
+            if (pass % 2 == 0)
+                assertNull(reader.next());
+            assertTrue(p >= end);
+            reader.close();
+            reader.close();
+            assertEquals(readers + 1, countReaders());
+        }
+        
+        chunks.close();
+        assertEquals(readers, countReaders());
+        assertEquals(100, chunks.getSize());
+    }
+
+    private static int countReaders()
+    {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().equals("ChunkedDataSet reader") && thread.isAlive())
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Test of parseDouble method, of class DataSetParser.
+     */
+    @Test
+    public void testParseDouble()
+    {
+        System.out.println("parseDouble");
+        String[] numbers = {
+            "0", "-0", "1", "-1", "3.14159", ".28", "1065", "0.076", "1e10",
+            "1.5E-7", "123456789012345678901", "0.1", "9007199254740993",
+            "4.9e-324", "1.7976931348623157e308", "NaN", "-Infinity"
+        };
+        for (String number : numbers)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(number.getBytes());
+            double expected = Double.parseDouble(number);
+            double result = DataSetParser.parseDouble(buffer, 0, number.length());
+            assertEquals(number, Double.doubleToLongBits(expected), Double.doubleToLongBits(result));
+        }
+    }
+
+    /**
+     * Test of getSubset method, of class DataSet.
+     */
+    @Test
+    public void testGetSubset() throws IOException
+    {
+        System.out.println("getSubset");
+        DataSet instance = new DataSet(new File("data-iris.txt"));
+        assertEquals(150, instance.getSize());
+        
+        DataSet subset = instance.getSubset(50, 100);
+        assertEquals(50, subset.getSize());
+        assertArrayEquals(instance.getPattern(50).getInputs(), subset.getPattern(0).getInputs(), 0.0);
+        assertEquals(instance.getPattern(99).getOutputIndex(), subset.getPattern(49).getOutputIndex());
+        
+        DataSet nested = subset.getSubset(10);
+        assertEquals(40, nested.getSize());
+        assertArrayEquals(instance.getPattern(60).getInputs(), nested.getPattern(0).getInputs(), 0.0);
+    }
+
+    /**
+     * Test of shuffle method, of class DataSet.
+     */
+    @Test
+    public void testShuffle() throws IOException
+    {
+        System.out.println("shuffle");
+        DataSet instance = new DataSet(new File("data-iris.txt"));
+        DataSet subset = instance.getSubset(0, 10);
+        double[] first = subset.getPattern(0).getInputs();
+        
+        instance.shuffle();
+        
+        // the subset keeps its own order
+        assertArrayEquals(first, subset.getPattern(0).getInputs(), 0.0);
+        
+        // and the shuffled set still holds every pattern once
+        int[] counts = new int[instance.getNumOutputs()];
+        for (int i = 0; i < instance.getSize(); i++)
+        {
+            counts[instance.getPattern(i).getOutputIndex()]++;
+        }
+        assertArrayEquals(new int[]{50, 50, 50}, counts);
+    }
+
+    /**
+     * Test of convert, which must keep shared storage shared.
+     */
+    @Test
+    public void testConvert() throws IOException
+    {
+        System.out.println("convert");
+        DataSet instance = new DataSet(new File("data-iris.txt"));
+        DataSet training = instance.getSubset(0, 100);
+        DataSet testing = instance.getSubset(100);
+        
+        DataSet[] result = DataSet.convert(true, training, testing);
+        assertTrue(result[0].isSinglePrecision());
+        assertNull(result[0].getInputData());
+        assertSame(result[0].getFloatInputData(), result[1].getFloatInputData());
+        assertEquals(testing.getSize(), result[1].getSize());
+        for (int p = 0; p < testing.getSize(); p++)
+        {
+            assertEquals(testing.getPattern(p).getOutputIndex(), result[1].getPattern(p).getOutputIndex());
+            for (int i = 0; i < testing.getNumInputs(); i++)
+            {
+                assertEquals((float)testing.getPattern(p).getInput(i), result[1].getPattern(p).getInput(i), 0);
+            }
+        }
+        assertTrue(result[1].getSubset(10).isSinglePrecision());
+        
+        DataSet[] back = DataSet.convert(false, result[0], training);
+        assertFalse(back[0].isSinglePrecision());
+        assertSame(training, back[1]);
+        assertEquals((float)training.getPattern(3).getInput(2), back[0].getPattern(3).getInput(2), 0);
+    }
+}
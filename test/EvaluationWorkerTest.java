@@ -0,0 +1,165 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class EvaluationWorkerTest
+{
+
+    /**
+     * Test of the handshake with bad requests, which must each be refused
+     * with an error rather than crash the worker.
+     */
+    @Test
+    public void testHandshake() throws IOException
+    {
+        System.out.println("handshake");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        ServerSocket server = startWorker(dataSet);
+        try
+        {
+            String sigmoid = Function.Sigmoid.class.getName();
+            int size = dataSet.getSize();
+            assertError(server, dataSet, 4, sigmoid, size, -1, 0, "Bad number of training patterns");
+            assertError(server, dataSet, 4, sigmoid, size, Integer.MAX_VALUE, 0, "Bad number of training patterns");
+            assertError(server, dataSet, 4, sigmoid, size, 3, size, "out of range");
+            assertError(server, dataSet, 4, sigmoid, size, 3, -1, "out of range");
+            assertError(server, dataSet, 0, sigmoid, size, 3, 0, "hidden units");
+            assertError(server, dataSet, 4, sigmoid, size + 1, 3, 0, "does not match");
+            assertError(server, dataSet, 4, "NoSuchFunction", size, 3, 0, "Unknown activation function");
+            assertError(server, dataSet, 4, "java.lang.String", size, 3, 0, "Unknown activation function");
+            
+            // not a Function, so it must not even be initialised
+            assertError(server, dataSet, 4, Trap.class.getName(), size, 3, 0, "Unknown activation function");
+            assertFalse(trapped);
+            
+            // still serving
+            Socket socket = handshake(server, dataSet, 4, sigmoid, size, 3, 0);
+            assertEquals(EvaluationWorker.OK, new DataInputStream(socket.getInputStream()).readInt());
+            socket.close();
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    /**
+     * Test of a batch with a bad range of patterns or count, which must end
+     * the session.
+     */
+    @Test
+    public void testBadBatch() throws IOException
+    {
+        System.out.println("bad batch");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        ServerSocket server = startWorker(dataSet);
+        try
+        {
+            int[][] batches = {{0, 4, 1}, {-1, 2, 1}, {2, 1, 1}, {0, 2, -1}};
+            for (int[] batch : batches)
+            {
+                Socket socket = handshake(server, dataSet, 4, Function.Sigmoid.class.getName(), dataSet.getSize(), 3, 0);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                assertEquals(EvaluationWorker.OK, in.readInt());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(1);
+                out.writeInt(batch[0]);
+                out.writeInt(batch[1]);
+                out.writeInt(batch[2]);
+                out.writeInt((dataSet.getNumInputs() + 1)*4 + 5*dataSet.getNumOutputs());
+                out.flush();
+                try
+                {
+                    in.readInt();
+                    fail("Expected the session to end");
+                }
+                catch (EOFException e)
+                {
+                    // expected
+                }
+                socket.close();
+            }
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    private static ServerSocket startWorker(DataSet dataSet) throws IOException
+    {
+        final ServerSocket server = new ServerSocket(0);
+        final EvaluationWorker worker = new EvaluationWorker(dataSet);
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    worker.serve(server);
+                }
+                catch (IOException e)
+                {
+                    // closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    // sends a handshake whose rows are 0, 1, ... with the last replaced by lastRow
+    private static Socket handshake(ServerSocket server, DataSet dataSet, int numHiddenUnits,
+            String function, int numRows, int numTraining, int lastRow) throws IOException
+    {
+        Socket socket = new Socket("localhost", server.getLocalPort());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(EvaluationWorker.MAGIC);
+        out.writeInt(dataSet.getNumInputs());
+        out.writeInt(numHiddenUnits);
+        out.writeInt(dataSet.getNumOutputs());
+        out.writeUTF(function);
+        out.writeInt(numRows);
+        out.writeInt(numTraining);
+        for (int i = 0; i < numTraining && i < 10; i++)
+        {
+            out.writeInt(i == numTraining - 1 ? lastRow : i);
+        }
+        out.flush();
+        return socket;
+    }
+
+    private static void assertError(ServerSocket server, DataSet dataSet, int numHiddenUnits,
+            String function, int numRows, int numTraining, int lastRow, String message) throws IOException
+    {
+        Socket socket = handshake(server, dataSet, numHiddenUnits, function, numRows, numTraining, lastRow);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(EvaluationWorker.ERROR, in.readInt());
+        String error = in.readUTF();
+        assertTrue(error, error.contains(message));
+        socket.close();
+    }
+
+    // set by Trap's static initialiser
+    private static volatile boolean trapped = false;
+
+    public static class Trap
+    {
+        static
+        {
+            trapped = true;
+        }
+    }
+}
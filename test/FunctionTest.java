@@ -0,0 +1,77 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class FunctionTest
+{
+
+    /**
+     * Test of apply, which should give the same results as f.
+     */
+    @Test
+    public void testApply()
+    {
+        System.out.println("apply");
+        Function[] functions = {
+            new Function.Sigmoid(), new Function.Linear(), new Function.Perceptron(),
+            new Function.Tanh(), new Function.FastSigmoid(), new Function.FastTanh()
+        };
+        double[] values = {-100, -16, -3.3, -1, -0.015625, 0, 0.2, 1, 7.9, 16, 100};
+        for (Function function : functions)
+        {
+            double[] buf = new double[values.length + 2];
+            System.arraycopy(values, 0, buf, 1, values.length);
+            buf[0] = buf[buf.length - 1] = 42;
+            function.apply(buf, 1, values.length);
+            
+            assertEquals(42, buf[0], 0);
+            assertEquals(42, buf[buf.length - 1], 0);
+            for (int i = 0; i < values.length; i++)
+            {
+                assertEquals(function.f(values[i]), buf[i + 1], 0);
+            }
+            
+            // in single precision, up to rounding
+            float[] floatBuf = new float[values.length];
+            for (int i = 0; i < values.length; i++)
+            {
+                floatBuf[i] = (float)values[i];
+            }
+            function.apply(floatBuf, 0, values.length);
+            for (int i = 0; i < values.length; i++)
+            {
+                assertEquals(function.f((float)values[i]), floatBuf[i], 3e-7);
+            }
+        }
+    }
+
+    /**
+     * Test of FastSigmoid and FastTanh, against their error bounds.
+     */
+    @Test
+    public void testFastError()
+    {
+        System.out.println("FastSigmoid/FastTanh");
+        Function sigmoid = new Function.Sigmoid();
+        Function fastSigmoid = new Function.FastSigmoid();
+        Function tanh = new Function.Tanh();
+        Function fastTanh = new Function.FastTanh();
+        
+        double sigmoidError = 0, tanhError = 0;
+        for (double x = -20; x <= 20; x += 0.001)
+        {
+            sigmoidError = Math.max(sigmoidError, Math.abs(fastSigmoid.f(x) - sigmoid.f(x)));
+            tanhError = Math.max(tanhError, Math.abs(fastTanh.f(x) - tanh.f(x)));
+        }
+        assertTrue(sigmoidError < Function.FastSigmoid.MAX_ERROR);
+        assertTrue(tanhError < Function.FastTanh.MAX_ERROR);
+        
+        assertEquals(0, fastSigmoid.f(Double.NEGATIVE_INFINITY), 0);
+        assertEquals(1, fastSigmoid.f(Double.POSITIVE_INFINITY), 0);
+        assertTrue(Double.isNaN(fastSigmoid.f(Double.NaN)));
+        assertTrue(Double.isNaN(fastTanh.f(Double.NaN)));
+    }
+}
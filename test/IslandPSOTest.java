@@ -0,0 +1,79 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class IslandPSOTest
+{
+
+    /**
+     * Test of optimise method, of class IslandPSO.
+     */
+    @Test
+    public void testOptimise()
+    {
+        System.out.println("optimise");
+        PSO[] islands = new PSO[4];
+        for (int k = 0; k < islands.length; k++)
+        {
+            islands[k] = new Sphere(300, new Topology.Ring(1), 0.72, 1.4, 1.4, 100, 10, -100, 100);
+        }
+        IslandPSO instance = new IslandPSO(islands, new Topology.Ring(1), 20);
+        instance.optimise();
+
+        double[] expected = {0.0,0.0};
+        assertArrayEquals(expected, instance.getBestIsland().getBestParticle().getBestValues(), 0.000001);
+        for (int k = 0; k < islands.length; k++)
+        {
+            assertTrue(((Sphere)islands[k]).finalised);
+            assertTrue(islands[k].getBestParticle().getBestFitness() < 0.001);
+        }
+    }
+
+    /**
+     * Test of immigrate method, of class PSO.
+     */
+    @Test
+    public void testImmigrate()
+    {
+        System.out.println("immigrate");
+        PSO instance = new Sphere(1, new Topology.Star(), 0.72, 1.4, 1.4, 100, 5, 50, 100);
+        instance.start();
+        double[] migrant = {0.5, -0.5};
+        instance.immigrate(migrant, 0.5);
+        assertArrayEquals(migrant, instance.getBestParticle().getBestValues(), 0);
+        assertEquals(0.5, instance.getBestParticle().getFitness(), 0);
+    }
+
+    private static class Sphere extends PSO
+    {
+        private boolean finalised = false;
+
+        public Sphere(int maxIterations, Topology topology, double w, double c1, double c2, double vmax, int numParticles, double lowerBound, double upperBound)
+        {
+            super(2, maxIterations, topology, w, c1, c2, vmax, numParticles, lowerBound, upperBound);
+        }
+
+        @Override
+        protected double getFitness(double[] values)
+        {
+            double x = values[0];
+            double y = values[1];
+            return x*x + y*y;
+        }
+
+        @Override
+        protected void outputStatistics(int i, double[] values)
+        {
+            // do nothing
+        }
+
+        @Override
+        protected void finalise(double[] values)
+        {
+            finalised = true;
+        }
+    }
+}
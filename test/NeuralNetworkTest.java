@@ -1,3 +1,8 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -54,6 +59,130 @@ public class NeuralNetworkTest
         
     }
 
+    /**
+     * Test of run method, of class NeuralNetwork, on fixed real valued
+     * weights. The outputs must match values worked out by hand to within
+     * rounding, and exactly match the forward pass written one unit at a
+     * time with the bias input inside the loop.
+     */
+    @Test
+    public void testRun_FixedWeights()
+    {
+        System.out.println("run fixed weights");
+        int numInputs = 3, numHidden = 4, numOutputs = 2;
+        NeuralNetwork instance = new NeuralNetwork(numInputs, numHidden, numOutputs, new Function.Sigmoid());
+        double[] weights = new double[instance.getNumWeights()];
+        for (int i = 0; i < weights.length; i++)
+        {
+            weights[i] = 0.5*Math.cos(i);
+        }
+        instance.setWeights(weights);
+        
+        double[][] inputs = {{0.5, -1, 2}, {0, 0, 0}};
+        double[][] expected = {
+            {0.361594369088452, 0.3469956622564157},
+            {0.3841794263065032, 0.3433257786001898}
+        };
+        Function f = new Function.Sigmoid();
+        for (int p = 0; p < inputs.length; p++)
+        {
+            double[] result = instance.run(inputs[p]);
+            assertArrayEquals(expected[p], result, 1e-15);
+            
+            double[] hidden = new double[numHidden + 1];
+            for (int j = 0; j < numHidden; j++)
+            {
+                for (int i = 0; i <= numInputs; i++)
+                {
+                    double x = i == numInputs ? -1 : inputs[p][i];
+                    hidden[j] += x * weights[i*numHidden + j];
+                }
+                hidden[j] = f.f(hidden[j]);
+            }
+            hidden[numHidden] = -1;
+            double[] output = new double[numOutputs];
+            for (int k = 0; k < numOutputs; k++)
+            {
+                for (int j = 0; j <= numHidden; j++)
+                {
+                    output[k] += hidden[j] * weights[(numInputs + 1)*numHidden + j*numOutputs + k];
+                }
+                output[k] = f.f(output[k]);
+            }
+            assertArrayEquals(output, result, 0);
+        }
+    }
+
+    /**
+     * Test of run method on a whole data set, which must agree with running
+     * each pattern on its own.
+     */
+    @Test
+    public void testRun_DataSet() throws IOException
+    {
+        System.out.println("run(DataSet)");
+        DataSet data = new DataSet(new File("data-iris.txt"));
+        NeuralNetwork instance = new NeuralNetwork(data.getNumInputs(), 5, data.getNumOutputs(), new Function.Sigmoid());
+        double[] weights = new double[instance.getNumWeights()];
+        for (int i = 0; i < weights.length; i++)
+        {
+            weights[i] = Math.sin(i);
+        }
+        instance.setWeights(weights);
+        
+        double MSE = 0;
+        int numCorrect = 0;
+        for (int p = 0; p < data.getSize(); p++)
+        {
+            DataSet.Pattern pattern = data.getPattern(p);
+            double[] output = instance.run(pattern.getInputs());
+            MSE += NeuralNetwork.meanSquared(output, pattern.getOutput());
+            if (NeuralNetwork.closeEnough(output, pattern.getOutput(), 0.3f))
+                numCorrect++;
+        }
+        
+        NeuralNetwork.Statistic result = instance.run(data);
+        assertEquals(MSE / data.getSize(), result.getMeanSquaredError(), 0.0);
+        assertEquals((double)numCorrect / data.getSize(), result.getAccuracy(), 0.0);
+    }
+
+    /**
+     * Test of run method on a data set read from disk in blocks, which must
+     * agree with running the whole set in memory.
+     */
+    @Test
+    public void testRun_ChunkedDataSet() throws IOException
+    {
+        System.out.println("run(ChunkedDataSet)");
+        File file = File.createTempFile("iris", ".txt");
+        file.deleteOnExit();
+        DataSetCache.getCacheFile(file).deleteOnExit();
+        FileInputStream in = new FileInputStream("data-iris.txt");
+        FileOutputStream out = new FileOutputStream(file);
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0;)
+        {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        out.close();
+        
+        DataSet data = new DataSet(file);
+        ChunkedDataSet chunks = new ChunkedDataSet(file, 7);
+        NeuralNetwork instance = new NeuralNetwork(data.getNumInputs(), 5, data.getNumOutputs(), new Function.Sigmoid());
+        double[] weights = new double[instance.getNumWeights()];
+        for (int i = 0; i < weights.length; i++)
+        {
+            weights[i] = Math.cos(i);
+        }
+        instance.setWeights(weights);
+        
+        NeuralNetwork.Statistic expected = instance.run(data.getSubset(10, 120));
+        NeuralNetwork.Statistic result = instance.run(chunks.getSubset(10, 120));
+        assertEquals(expected.getMeanSquaredError(), result.getMeanSquaredError(), 0.0);
+        assertEquals(expected.getAccuracy(), result.getAccuracy(), 0.0);
+    }
+
     /**
      * Test of meanSquared method, of class NeuralNetwork.
      */
@@ -67,4 +196,166 @@ public class NeuralNetworkTest
         double result = NeuralNetwork.meanSquared(yHat, y);
         assertEquals(expResult, result, 0.0);
     }
+
+    /**
+     * Test of setSinglePrecision, which should give nearly the same results
+     * as double precision.
+     */
+    @Test
+    public void testSinglePrecision() throws IOException
+    {
+        System.out.println("setSinglePrecision");
+        DataSet data = new DataSet(new File("data-iris.txt"));
+        DataSet floatData = DataSet.convert(true, data)[0];
+        NeuralNetwork instance = new NeuralNetwork(data.getNumInputs(), 5, data.getNumOutputs(), new Function.Sigmoid());
+        double[] weights = new double[instance.getNumWeights()];
+        for (int i = 0; i < weights.length; i++)
+        {
+            weights[i] = Math.sin(i);
+        }
+        instance.setWeights(weights);
+        NeuralNetwork.Statistic expected = instance.run(data);
+        double[] expectedOutput = instance.run(data.getPattern(0).getInputs());
+        
+        instance.setSinglePrecision(true);
+        instance.setWeights(weights);
+        NeuralNetwork.Statistic result = instance.run(floatData);
+        assertEquals(expected.getMeanSquaredError(), result.getMeanSquaredError(), 1e-6);
+        assertEquals(expected.getAccuracy(), result.getAccuracy(), 0);
+        assertArrayEquals(expectedOutput, instance.run(data.getPattern(0).getInputs()), 1e-6);
+        
+        try
+        {
+            instance.run(data);
+            fail("Ran a double precision data set in single precision");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Test of run with weights passed in, which must agree with setting the
+     * weights and leave the network's own weights alone.
+     */
+    @Test
+    public void testRun_Weights() throws IOException
+    {
+        System.out.println("run(double[], DataSet)");
+        DataSet data = new DataSet(new File("data-iris.txt"));
+        NeuralNetwork instance = new NeuralNetwork(data.getNumInputs(), 5, data.getNumOutputs(), new Function.Sigmoid());
+        double[] own = new double[instance.getNumWeights()];
+        double[] weights = new double[instance.getNumWeights()];
+        for (int i = 0; i < weights.length; i++)
+        {
+            own[i] = Math.cos(i);
+            weights[i] = Math.sin(i);
+        }
+        instance.setWeights(own);
+        NeuralNetwork.Statistic ownStat = instance.run(data);
+        
+        NeuralNetwork.Statistic result = instance.run(weights, data);
+        instance.setWeights(weights);
+        NeuralNetwork.Statistic expected = instance.run(data);
+        assertEquals(expected.getMeanSquaredError(), result.getMeanSquaredError(), 0.0);
+        assertEquals(expected.getAccuracy(), result.getAccuracy(), 0.0);
+        
+        instance.setWeights(own);
+        instance.run(weights, data);
+        assertEquals(ownStat.getMeanSquaredError(), instance.run(data).getMeanSquaredError(), 0.0);
+        
+        instance.setSinglePrecision(true);
+        result = instance.run(weights, DataSet.convert(true, data)[0]);
+        assertEquals(expected.getMeanSquaredError(), result.getMeanSquaredError(), 1e-6);
+        
+        try
+        {
+            instance.run(new double[weights.length - 1], data);
+            fail("Ran with the wrong number of weights");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Test of run with many sets of weights at once, which must agree with
+     * running them one by one, with enough sets to need several tiles.
+     */
+    @Test
+    public void testRun_Swarm() throws IOException
+    {
+        System.out.println("run(double[][], DataSet)");
+        DataSet data = new DataSet(new File("data-iris.txt"));
+        NeuralNetwork instance = new NeuralNetwork(data.getNumInputs(), 50, data.getNumOutputs(), new Function.Sigmoid());
+        double[][] weights = new double[13][instance.getNumWeights()];
+        for (int p = 0; p < weights.length; p++)
+        {
+            for (int i = 0; i < weights[p].length; i++)
+            {
+                weights[p][i] = Math.sin(i + 10*p);
+            }
+        }
+        
+        NeuralNetwork.Statistic[] result = instance.run(weights, data.getSubset(5, 145));
+        assertEquals(weights.length, result.length);
+        for (int p = 0; p < weights.length; p++)
+        {
+            NeuralNetwork.Statistic expected = instance.run(weights[p], data.getSubset(5, 145));
+            assertEquals(expected.getMeanSquaredError(), result[p].getMeanSquaredError(), 0.0);
+            assertEquals(expected.getAccuracy(), result[p].getAccuracy(), 0.0);
+        }
+        
+        instance.setSinglePrecision(true);
+        DataSet floatData = DataSet.convert(true, data)[0];
+        result = instance.run(weights, floatData);
+        for (int p = 0; p < weights.length; p++)
+        {
+            NeuralNetwork.Statistic expected = instance.run(weights[p], floatData);
+            assertEquals(expected.getMeanSquaredError(), result[p].getMeanSquaredError(), 0.0);
+            assertEquals(expected.getAccuracy(), result[p].getAccuracy(), 0.0);
+        }
+    }
+
+    /**
+     * Test of run method on patterns laid end to end, writing into arrays
+     * of the caller's, which must agree with run(double[]).
+     */
+    @Test
+    public void testRun_Batch() throws IOException
+    {
+        System.out.println("run(double[], double[], int)");
+        DataSet data = new DataSet(new File("data-iris.txt"));
+        NeuralNetwork instance = new NeuralNetwork(data.getNumInputs(), 5, data.getNumOutputs(), new Function.Sigmoid());
+        double[] weights = new double[instance.getNumWeights()];
+        for (int i = 0; i < weights.length; i++)
+        {
+            weights[i] = Math.sin(i);
+        }
+        instance.setWeights(weights);
+        
+        int count = 10;
+        double[] inputs = new double[count*data.getNumInputs()];
+        for (int p = 0; p < count; p++)
+        {
+            System.arraycopy(data.getPattern(p).getInputs(), 0, inputs, p*data.getNumInputs(), data.getNumInputs());
+        }
+        for (int precision = 0; precision < 2; precision++)
+        {
+            instance.setSinglePrecision(precision == 1);
+            instance.setWeights(weights);
+            double[] outputs = new double[count*data.getNumOutputs()];
+            instance.run(inputs, outputs, count);
+            double[] output = new double[data.getNumOutputs()];
+            for (int p = 0; p < count; p++)
+            {
+                double[] expected = instance.run(data.getPattern(p).getInputs());
+                assertArrayEquals(expected, Arrays.copyOfRange(outputs, p*output.length, (p + 1)*output.length), 0);
+                assertSame(output, instance.run(data.getPattern(p).getInputs(), output));
+                assertArrayEquals(expected, output, 0);
+            }
+        }
+    }
 }
\ No newline at end of file
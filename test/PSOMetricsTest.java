@@ -0,0 +1,152 @@
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class PSOMetricsTest
+{
+
+    /**
+     * Test of the metrics after an optimisation.
+     */
+    @Test
+    public void testMetrics()
+    {
+        System.out.println("metrics");
+        PSO instance = new Sphere(50, 10);
+        instance.setSeed(1);
+        PSOMetrics metrics = instance.getMetrics();
+        assertFalse(metrics.isRunning());
+        instance.optimise();
+
+        assertFalse(metrics.isRunning());
+        assertEquals(50, metrics.getIteration());
+        assertEquals(10*51, metrics.getEvaluations());
+        assertTrue(metrics.getEvaluationsPerSecond() > 0);
+        assertEquals(instance.getBestParticle().getBestFitness(), metrics.getBestFitness(), 0);
+        assertTrue(metrics.getCurrentFitness() >= metrics.getBestFitness());
+        assertTrue(metrics.getDiversity() > 0);
+        assertTrue(metrics.getTotalEvaluationSeconds() > 0);
+        assertTrue(metrics.getTotalUpdateSeconds() > 0);
+        assertTrue(metrics.getTotalEvaluationSeconds() >= metrics.getEvaluationMillis()/1000);
+    }
+
+    /**
+     * Test of the metrics after an optimisation that fails part way, which
+     * must still stop the run and its worker threads.
+     */
+    @Test
+    public void testFailure()
+    {
+        System.out.println("metrics after a failure");
+        for (int threads = 1; threads <= 3; threads += 2)
+        {
+            final int[] evaluated = new int[1];
+            PSO instance = new Sphere(50, 10)
+            {
+                @Override
+                protected double getFitness(double[] values)
+                {
+                    synchronized (evaluated)
+                    {
+                        if (++evaluated[0] > 35)
+                            throw new IllegalStateException("Evaluation failed");
+                    }
+                    return super.getFitness(values);
+                }
+            };
+            instance.setNumThreads(threads);
+            try
+            {
+                instance.optimise();
+                fail("Expected the optimisation to fail");
+            }
+            catch (RuntimeException e)
+            {
+                // expected
+            }
+            assertFalse(instance.getMetrics().isRunning());
+
+            // and it can run again
+            evaluated[0] = -1000;
+            instance.optimise();
+            assertFalse(instance.getMetrics().isRunning());
+            assertEquals(50, instance.getMetrics().getIteration());
+        }
+    }
+
+    /**
+     * Test of the diversity of a swarm at a single point.
+     */
+    @Test
+    public void testDiversity()
+    {
+        System.out.println("getDiversity");
+        PSO instance = new Sphere(1, 4);
+        for (Particle particle : instance.getParticles())
+        {
+            particle.replace(new double[]{0.5, -0.5}, 0.5);
+        }
+        assertEquals(0, instance.getMetrics().getDiversity(), 1e-12);
+
+        instance.getParticles()[0].replace(new double[]{1.5, -0.5}, 2.5);
+        // the centre moves 0.25 towards it
+        assertEquals((0.75 + 3*0.25)/4, instance.getMetrics().getDiversity(), 1e-12);
+    }
+
+    /**
+     * Test of register, reading attributes through the MBean server.
+     */
+    @Test
+    public void testRegister() throws Exception
+    {
+        System.out.println("register");
+        PSO instance = new Sphere(5, 10);
+        instance.optimise();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = instance.getMetrics().register("test");
+        try
+        {
+            assertTrue(server.isRegistered(name));
+            assertEquals(5, server.getAttribute(name, "Iteration"));
+            assertEquals(50L + 10, server.getAttribute(name, "Evaluations"));
+        }
+        finally
+        {
+            instance.getMetrics().unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    private static class Sphere extends PSO
+    {
+        public Sphere(int maxIterations, int numParticles)
+        {
+            super(2, maxIterations, new Topology.Star(), 0.72, 1.4, 1.4, 1, numParticles, -1, 1);
+        }
+
+        @Override
+        protected double getFitness(double[] values)
+        {
+            return values[0]*values[0] + values[1]*values[1];
+        }
+
+        @Override
+        protected void outputStatistics(int i, double[] values)
+        {
+            // do nothing
+        }
+
+        @Override
+        protected void finalise(double[] values)
+        {
+            // do nothing
+        }
+    }
+}
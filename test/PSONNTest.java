@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class PSONNTest
+{
+
+    /**
+     * Test of setSeed method, of class PSONN, with and without worker
+     * threads and mini-batches.
+     */
+    @Test
+    public void testSetSeed() throws IOException
+    {
+        System.out.println("setSeed");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        NeuralNetwork.Statistic[] results = new NeuralNetwork.Statistic[4];
+        for (int k = 0; k < results.length; k++)
+        {
+            PSONN instance = new PSONN(dataSet, 30, 4, new Function.Sigmoid(), new Topology.Ring(2), 0.72, 1.4, 1.4, 1, 20, -1, 1);
+            instance.setSeed(1234);
+            instance.setNumThreads(1 + k%2);
+            if (k >= 2)
+                instance.setMiniBatch(25, 10);
+            instance.optimise();
+            results[k] = instance.getTestingStatistic();
+        }
+        
+        assertEquals(results[0].getMeanSquaredError(), results[1].getMeanSquaredError(), 0);
+        assertEquals(results[0].getAccuracy(), results[1].getAccuracy(), 0);
+        assertEquals(results[2].getMeanSquaredError(), results[3].getMeanSquaredError(), 0);
+        assertEquals(results[2].getAccuracy(), results[3].getAccuracy(), 0);
+    }
+
+    /**
+     * Test of setMiniBatch method, of class PSONN. Each iteration must score
+     * the particles on the next batch of the training data in turn, and
+     * every revalidation must leave each personal best with its fitness on
+     * the full training data.
+     */
+    @Test
+    public void testSetMiniBatch() throws IOException
+    {
+        System.out.println("setMiniBatch");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        dataSet.shuffle(new Rng(5));
+        final DataSet training = dataSet.getSubset(0, 90);
+        final NeuralNetwork network = new NeuralNetwork(4, 4, 3, new Function.Sigmoid());
+        // the iteration being scored, or -1 while scoring on all the data
+        final int[] iteration = {-1};
+        final int[] revalidations = {0};
+        PSONN instance = new PSONN(training, dataSet.getSubset(90), 23, 4, new Function.Sigmoid(), new Topology.Ring(2), 0.72, 1.4, 1.4, 1, 10, -1, 1)
+        {
+            @Override
+            protected double getFitness(double[] values)
+            {
+                double fitness = super.getFitness(values);
+                DataSet batch = training;
+                if (iteration[0] >= 0)
+                {
+                    int start = (iteration[0] % 4)*25;
+                    batch = training.getSubset(start, Math.min(start + 25, 90));
+                }
+                assertEquals(network.run(values, batch).getMeanSquaredError(), fitness, 0);
+                return fitness;
+            }
+
+            @Override
+            protected void beginIteration(int i)
+            {
+                iteration[0] = -1;
+                super.beginIteration(i);
+                if (i > 0 && i % 5 == 0)
+                {
+                    checkBests(this, network, training);
+                    revalidations[0]++;
+                }
+                iteration[0] = i;
+            }
+
+            @Override
+            protected void finalise(double[] values)
+            {
+                iteration[0] = -1;
+                super.finalise(values);
+            }
+        };
+        instance.setSeed(1234);
+        instance.setSwarmEvaluation(false);
+        instance.setMiniBatch(25, 5);
+        instance.optimise();
+        assertEquals(4, revalidations[0]);
+        checkBests(instance, network, training);
+        assertEquals(network.run(instance.getBestValues(), training).getMeanSquaredError(),
+                instance.getTrainingStatistic().getMeanSquaredError(), 0);
+    }
+
+    /**
+     * Test of the statistics PSONN writes each iteration, which reuse the
+     * training statistic from the fitness evaluation when they can. They
+     * must be the same as when it is always calculated again.
+     */
+    @Test
+    public void testOutputStatistics() throws IOException
+    {
+        System.out.println("outputStatistics");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        String[] outputs = new String[4];
+        int[] runs = new int[4];
+        for (int k = 0; k < outputs.length; k++)
+        {
+            final boolean reuse = k%2 == 0;
+            CountingSigmoid function = new CountingSigmoid();
+            PSONN instance = new PSONN(dataSet, 30, 4, function, new Topology.Ring(2), 0.72, 1.4, 1.4, 1, 20, -1, 1)
+            {
+                @Override
+                protected void outputStatistics(int i, Particle best)
+                {
+                    if (reuse)
+                        super.outputStatistics(i, best);
+                    else
+                        outputStatistics(i, best.getValues());
+                }
+            };
+            instance.setSeed(1234);
+            instance.setSwarmEvaluation(k < 2);
+            StringWriter out = new StringWriter();
+            instance.setWriter(new PrintWriter(out));
+            instance.optimise();
+            outputs[k] = out.toString();
+            runs[k] = function.count;
+        }
+        
+        assertEquals(outputs[1], outputs[0]);
+        assertEquals(outputs[3], outputs[2]);
+        assertEquals(outputs[0], outputs[2]);
+        assertEquals(30, outputs[0].split("\n").length);
+        // the reused statistics save running the training data again
+        assertTrue(runs[0] < runs[1]);
+        assertTrue(runs[2] < runs[3]);
+    }
+
+    // counts the times it is applied to a layer
+    private static class CountingSigmoid extends Function.Sigmoid
+    {
+        private int count = 0;
+
+        @Override
+        public void apply(double[] buf, int off, int len)
+        {
+            count++;
+            super.apply(buf, off, len);
+        }
+    }
+
+    // checks that every personal best's fitness is its score on all of data
+    private static void checkBests(PSO pso, NeuralNetwork network, DataSet data)
+    {
+        double best = Double.POSITIVE_INFINITY;
+        for (Particle particle : pso.getParticles())
+        {
+            double fitness = network.run(particle.getBestValues(), data).getMeanSquaredError();
+            assertEquals(fitness, particle.getBestFitness(), 0);
+            best = Math.min(best, fitness);
+        }
+        assertEquals(best, pso.getBestFitness(), 0);
+    }
+
+    /**
+     * Test of setSwarmEvaluation method, of class PSONN, which must not
+     * change the outcome.
+     */
+    @Test
+    public void testSetSwarmEvaluation() throws IOException
+    {
+        System.out.println("setSwarmEvaluation");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        NeuralNetwork.Statistic[] results = new NeuralNetwork.Statistic[4];
+        for (int k = 0; k < results.length; k++)
+        {
+            PSONN instance = new PSONN(dataSet, 20, 4, new Function.Sigmoid(), new Topology.Ring(2), 0.72, 1.4, 1.4, 1, 20, -1, 1);
+            instance.setSeed(1234);
+            instance.setSwarmEvaluation(k%2 == 0);
+            if (k >= 2)
+                instance.setNumThreads(2);
+            instance.optimise();
+            results[k] = instance.getTestingStatistic();
+        }
+        
+        assertEquals(results[0].getMeanSquaredError(), results[1].getMeanSquaredError(), 0);
+        assertEquals(results[0].getAccuracy(), results[1].getAccuracy(), 0);
+        assertEquals(results[0].getMeanSquaredError(), results[2].getMeanSquaredError(), 0);
+        assertEquals(results[2].getMeanSquaredError(), results[3].getMeanSquaredError(), 0);
+    }
+}
@@ -1,3 +1,9 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -22,8 +28,246 @@ public class PSOTest
         assertArrayEquals(expected, actuals, 0.000001);
     }
 
+    /**
+     * Test of optimise method, of class PSO, in asynchronous mode.
+     */
+    @Test
+    public void testOptimiseAsynchronous()
+    {
+        System.out.println("optimise asynchronous");
+        Topology[] topologies = {new Topology.Star(), new Topology.Ring(1)};
+        for (Topology topology : topologies)
+        {
+            PSOImpl instance = new PSOImpl(500, topology, 0.72, 1.4, 1.4, 100, 30, -100, 100);
+            instance.setAsynchronous(true);
+            instance.setNumThreads(3);
+            instance.optimise();
+            assertEquals(30*501, instance.getEvaluations());
+            assertEquals(500, instance.iterations);
+            double[] actuals = instance.getBestParticle().getBestValues();
+            double[] expected = {0.0,0.0};
+            assertArrayEquals(expected, actuals, 0.001);
+        }
+    }
+
+    /**
+     * Test of resume method, of class PSO.
+     */
+    @Test
+    public void testResume() throws IOException
+    {
+        System.out.println("resume");
+        File file = File.createTempFile("pso", ".checkpoint");
+        file.deleteOnExit();
+        
+        PSOImpl instance = new PSOImpl(20, new Topology.Ring(1), 0.72, 1.4, 1.4, 100, 30, -100, 100);
+        instance.setCheckpoint(file, 10);
+        instance.optimise();
+        
+        // the checkpoint at the last iteration holds the final swarm
+        PSOImpl resumed = new PSOImpl(25, new Topology.Ring(1), 0.72, 1.4, 1.4, 100, 30, -100, 100);
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.read(resumed.getParticles());
+        assertEquals(20, checkpoint.getIteration());
+        assertEquals(30*21, checkpoint.getEvaluations());
+        for (int j = 0; j < 30; j++)
+        {
+            Particle expected = instance.getParticles()[j];
+            Particle actual = resumed.getParticles()[j];
+            assertArrayEquals(expected.getValues(), actual.getValues(), 0);
+            assertArrayEquals(expected.getVelocity(), actual.getVelocity(), 0);
+            assertArrayEquals(expected.getBestValues(), actual.getBestValues(), 0);
+            assertEquals(expected.getFitness(), actual.getFitness(), 0);
+            assertEquals(expected.getBestFitness(), actual.getBestFitness(), 0);
+        }
+        
+        resumed.iterations = 20;
+        resumed.resume(file);
+        assertEquals(25, resumed.getIterations());
+        assertEquals(25, resumed.iterations);
+        assertEquals(30*26, resumed.getEvaluations());
+        assertTrue(resumed.getBestParticle().getBestFitness() <= instance.getBestParticle().getBestFitness());
+    }
+
+    /**
+     * Test of Checkpoint with a swarm whose checkpoint would be over 2GB,
+     * which must be refused rather than overflow.
+     */
+    @Test
+    public void testCheckpointTooLarge() throws IOException
+    {
+        System.out.println("checkpoint too large");
+        File file = File.createTempFile("pso", ".checkpoint");
+        file.deleteOnExit();
+        
+        // the size only depends on the first particle's dimensions
+        Particle[] particles = new Particle[100000];
+        Arrays.fill(particles, new Particle(1000, -1, 1));
+        Checkpoint checkpoint = new Checkpoint(file);
+        try
+        {
+            checkpoint.write(1, 1, particles);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+        }
+        
+        // a header claiming that swarm
+        ByteBuffer header = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x50534f43).putInt(2).putInt(particles.length).putInt(1000);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(header.array());
+        out.close();
+        try
+        {
+            checkpoint.read(particles);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+        }
+    }
+
+    /**
+     * Test of setSeed method, of class PSO.
+     */
+    @Test
+    public void testSetSeed()
+    {
+        System.out.println("setSeed");
+        double[][] results = new double[3][];
+        for (int k = 0; k < results.length; k++)
+        {
+            PSOImpl instance = new PSOImpl(100, new Topology.Ring(1), 0.72, 1.4, 1.4, 100, 30, -100, 100);
+            instance.setSeed(k < 2 ? 42 : 43);
+            instance.setNumThreads(1 + k);
+            instance.optimise();
+            results[k] = instance.getBestParticle().getBestValues();
+        }
+        
+        // the same whatever the number of threads, but not for other seeds
+        assertArrayEquals(results[0], results[1], 0);
+        assertFalse(results[0][0] == results[2][0]);
+    }
+
+    /**
+     * Test of setNumThreads method, of class PSO, which must leave every
+     * particle exactly where a single thread would, including with more
+     * threads than particles.
+     */
+    @Test
+    public void testSetNumThreads()
+    {
+        System.out.println("setNumThreads");
+        int[] threads = {1, 2, 3, 8, 40};
+        PSOImpl[] instances = new PSOImpl[threads.length];
+        for (int k = 0; k < threads.length; k++)
+        {
+            instances[k] = new PSOImpl(50, new Topology.Ring(1), 0.72, 1.4, 1.4, 100, 30, -100, 100);
+            instances[k].setSeed(7);
+            instances[k].setNumThreads(threads[k]);
+            instances[k].optimise();
+        }
+        
+        for (int k = 1; k < threads.length; k++)
+        {
+            assertEquals(instances[0].getEvaluations(), instances[k].getEvaluations());
+            for (int j = 0; j < 30; j++)
+            {
+                Particle expected = instances[0].getParticles()[j];
+                Particle actual = instances[k].getParticles()[j];
+                assertArrayEquals(expected.getValues(), actual.getValues(), 0);
+                assertArrayEquals(expected.getVelocity(), actual.getVelocity(), 0);
+                assertArrayEquals(expected.getBestValues(), actual.getBestValues(), 0);
+                assertEquals(expected.getFitness(), actual.getFitness(), 0);
+                assertEquals(expected.getBestFitness(), actual.getBestFitness(), 0);
+            }
+        }
+    }
+
+    /**
+     * Test of resume method, of class PSO, continuing exactly as if the run
+     * had not stopped.
+     */
+    @Test
+    public void testResumeSeeded() throws IOException
+    {
+        System.out.println("resume seeded");
+        File file = File.createTempFile("pso", ".checkpoint");
+        file.deleteOnExit();
+        
+        PSOImpl instance = new PSOImpl(50, new Topology.Star(), 0.72, 1.4, 1.4, 100, 30, -100, 100);
+        instance.setSeed(7);
+        instance.optimise();
+        
+        PSOImpl stopped = new PSOImpl(20, new Topology.Star(), 0.72, 1.4, 1.4, 100, 30, -100, 100);
+        stopped.setSeed(7);
+        stopped.setCheckpoint(file, 10);
+        stopped.optimise();
+        
+        PSOImpl resumed = new PSOImpl(50, new Topology.Star(), 0.72, 1.4, 1.4, 100, 30, -100, 100);
+        resumed.iterations = 20;
+        resumed.resume(file);
+        for (int j = 0; j < 30; j++)
+        {
+            assertArrayEquals(instance.getParticles()[j].getValues(), resumed.getParticles()[j].getValues(), 0);
+            assertArrayEquals(instance.getParticles()[j].getBestValues(), resumed.getParticles()[j].getBestValues(), 0);
+        }
+    }
+
+    /**
+     * Test of getBestParticle, getBestFitness and getBestValues while an
+     * asynchronous run is in progress, which must follow the swarm rather
+     * than only being brought up to date at the end.
+     */
+    @Test
+    public void testBestAsynchronous()
+    {
+        System.out.println("best asynchronous");
+        for (int threads = 1; threads <= 3; threads += 2)
+        {
+            final int numThreads = threads;
+            final double[] last = {Double.POSITIVE_INFINITY};
+            PSOImpl instance = new PSOImpl(100, new Topology.Ring(1), 0.72, 1.4, 1.4, 100, 30, -100, 100)
+            {
+                @Override
+                protected void outputStatistics(int i, double[] values)
+                {
+                    double fitness = getFitness(values);
+                    assertTrue(fitness <= last[0]);
+                    last[0] = fitness;
+                    // a worker may improve it further, but never make it worse
+                    assertTrue(getBestFitness() <= fitness);
+                    assertTrue(getBestParticle().getBestFitness() <= fitness);
+                    if (numThreads == 1)
+                    {
+                        assertSame(getBestValues(), values);
+                        assertEquals(getBestFitness(), fitness, 0);
+                        double min = Double.POSITIVE_INFINITY;
+                        for (Particle particle : getParticles())
+                        {
+                            min = Math.min(min, particle.getBestFitness());
+                        }
+                        assertEquals(min, fitness, 0);
+                        assertEquals(min, getBestParticle().getBestFitness(), 0);
+                        assertArrayEquals(getBestParticle().getBestValues(), values, 0);
+                    }
+                }
+            };
+            instance.setAsynchronous(true);
+            instance.setNumThreads(numThreads);
+            instance.optimise();
+            assertEquals(instance.getBestParticle().getBestFitness(), instance.getBestFitness(), 0);
+            assertTrue(last[0] < 1e-3);
+        }
+    }
+
     public class PSOImpl extends PSO
     {
+        private int iterations = 0;
 
         public PSOImpl(int maxIterations, Topology topology, double w, double c1, double c2, double vmax, int numParticles, double lowerBound, double upperBound)
         {
@@ -41,7 +285,7 @@ public class PSOTest
         @Override
         protected void outputStatistics(int i, double[] values)
         {
-            // do nothing
+            assertEquals(++iterations, i);
         }
 
         @Override
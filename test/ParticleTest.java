@@ -0,0 +1,73 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class ParticleTest
+{
+
+    /**
+     * Test of update method, of class Particle, against the update written
+     * with the vector helpers, which allocate a new array at every step. The
+     * results must be exactly the same, with and without clamping, and when
+     * the best passed in is the particle's own position.
+     */
+    @Test
+    public void testUpdate()
+    {
+        System.out.println("update");
+        int n = 17;
+        double[] gbest = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            gbest[i] = Math.sin(i);
+        }
+        
+        for (double vmax : new double[]{0.5, 1e6})
+        {
+            Particle instance = new Particle(n, -2, 2, new Rng(99));
+            Rng rng = new Rng(99);
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++)
+            {
+                values[i] = 4*rng.nextDouble() - 2;
+            }
+            double[] velocity = new double[n];
+            double[] pbest = values.clone();
+            double pbestFitness = Double.POSITIVE_INFINITY;
+            
+            for (int step = 0; step < 100; step++)
+            {
+                boolean own = step % 10 == 9;
+                double[] best = own ? values.clone() : gbest;
+                instance.update(0.72, 1.4, 1.4, vmax, own ? instance.getValues() : gbest);
+                
+                double r1 = rng.nextDouble();
+                double r2 = rng.nextDouble();
+                velocity = Particle.add(Particle.add(Particle.multiply(velocity, 0.72),
+                        Particle.multiply(Particle.subtract(pbest, values), 1.4*r1)),
+                        Particle.multiply(Particle.subtract(best, values), 1.4*r2));
+                double lensq = Particle.lengthSquared(velocity);
+                if (lensq > vmax*vmax)
+                {
+                    velocity = Particle.multiply(velocity, 1.0/(Math.sqrt(lensq)));
+                }
+                values = Particle.add(values, velocity);
+                
+                assertArrayEquals(velocity, instance.getVelocity(), 0);
+                assertArrayEquals(values, instance.getValues(), 0);
+                
+                double fitness = Particle.lengthSquared(values);
+                instance.updateFitness(fitness);
+                if (fitness < pbestFitness)
+                {
+                    pbest = values.clone();
+                    pbestFitness = fitness;
+                }
+                assertArrayEquals(pbest, instance.getBestValues(), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class PredictionServerTest
+{
+
+    /**
+     * Test of serve method, of class PredictionServer, with several clients
+     * at once, which must get the same outputs as running the network.
+     */
+    @Test
+    public void testServe() throws Exception
+    {
+        System.out.println("serve");
+        final DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        final NeuralNetwork network = new NeuralNetwork(dataSet.getNumInputs(), 5, dataSet.getNumOutputs(), new Function.Sigmoid());
+        double[] weights = new double[network.getNumWeights()];
+        for (int i = 0; i < weights.length; i++)
+        {
+            weights[i] = Math.sin(i);
+        }
+        network.setWeights(weights);
+        
+        final PredictionServer instance = new PredictionServer(network, 8, 100);
+        final ServerSocket server = new ServerSocket(0);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread serving = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    instance.serve(server);
+                }
+                catch (IOException e)
+                {
+                    error.set(e);
+                }
+            }
+        });
+        serving.start();
+        
+        try
+        {
+            final InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+            Thread[] clients = new Thread[4];
+            for (int c = 0; c < clients.length; c++)
+            {
+                final int first = c%2;
+                clients[c] = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            PredictionClient client = new PredictionClient(address);
+                            assertEquals(dataSet.getNumInputs(), client.getNumInputs());
+                            double[] output = new double[client.getNumOutputs()];
+                            for (int p = first; p < dataSet.getSize(); p += 2)
+                            {
+                                double[] input = dataSet.getPattern(p).getInputs();
+                                assertArrayEquals(network.run(input), client.predict(input, output), 0);
+                            }
+                            client.close();
+                        }
+                        catch (Throwable e)
+                        {
+                            error.set(e);
+                        }
+                    }
+                });
+                clients[c].start();
+            }
+            for (Thread client : clients)
+            {
+                client.join();
+            }
+            if (error.get() != null)
+                throw new AssertionError(error.get());
+            
+            // the last replies may be recorded just after they arrive
+            long deadline = System.currentTimeMillis() + 10000;
+            while (instance.getStatistics().getRequests() < 2*dataSet.getSize() && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            PredictionServer.Statistics stats = instance.resetStatistics();
+            assertEquals(2*dataSet.getSize(), stats.getRequests());
+            assertTrue(stats.getBatches() > 0 && stats.getBatches() <= stats.getRequests());
+            assertTrue(stats.getLatency(50) > 0);
+            assertTrue(stats.getLatency(50) <= stats.getLatency(99));
+            assertTrue(stats.getThroughput() > 0);
+            assertEquals(0, instance.getStatistics().getRequests());
+        }
+        finally
+        {
+            instance.close();
+            serving.join(10000);
+        }
+        assertFalse(serving.isAlive());
+        assertNull(error.get());
+    }
+}
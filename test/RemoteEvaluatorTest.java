@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class RemoteEvaluatorTest
+{
+
+    // starts a worker process on a free port
+    private static Process startWorker(File file, int[] port) throws IOException
+    {
+        ProcessBuilder builder = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                "EvaluationWorker", "0", file.getPath());
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = in.readLine();
+        assertNotNull("worker did not start", line);
+        port[0] = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+        return process;
+    }
+
+    /**
+     * Test of evaluate method, of class RemoteEvaluator, with local worker
+     * processes, one of which is killed part way.
+     */
+    @Test
+    public void testEvaluate() throws IOException
+    {
+        System.out.println("evaluate");
+        File file = new File("data-iris.txt");
+        DataSet dataSet = new DataSet(file);
+        dataSet.shuffle();
+        DataSet training = dataSet.getSubset(0, 90);
+        NeuralNetwork network = new NeuralNetwork(dataSet.getNumInputs(), 4, dataSet.getNumOutputs(), new Function.Sigmoid());
+
+        double[][] positions = new double[25][network.getNumWeights()];
+        for (int j = 0; j < positions.length; j++)
+        {
+            for (int i = 0; i < positions[j].length; i++)
+            {
+                positions[j][i] = Math.sin(i + 7*j);
+            }
+        }
+
+        Process[] workers = new Process[2];
+        InetSocketAddress[] addresses = new InetSocketAddress[workers.length];
+        RemoteEvaluator instance = null;
+        try
+        {
+            int[] port = new int[1];
+            for (int k = 0; k < workers.length; k++)
+            {
+                workers[k] = startWorker(file, port);
+                addresses[k] = new InetSocketAddress("localhost", port[0]);
+            }
+            instance = new RemoteEvaluator(addresses, 3);
+            instance.connect(network, training);
+
+            for (int pass = 0; pass < 2; pass++)
+            {
+                DataSet batch = pass == 0 ? training : training.getSubset(10, 50);
+                double[] results = new double[positions.length];
+                instance.evaluate(positions, results, pass == 0 ? 0 : 10, pass == 0 ? 90 : 50);
+                for (int j = 0; j < positions.length; j++)
+                {
+                    network.setWeights(positions[j]);
+                    assertEquals(network.run(batch).getMeanSquaredError(), results[j], 0);
+                }
+
+                // the other worker should take over
+                workers[0].destroy();
+                try
+                {
+                    workers[0].waitFor();
+                }
+                catch (InterruptedException e)
+                {
+                    fail();
+                }
+            }
+        }
+        finally
+        {
+            if (instance != null)
+                instance.close();
+            for (Process worker : workers)
+            {
+                if (worker != null)
+                    worker.destroy();
+            }
+        }
+    }
+
+    /**
+     * Test of evaluate method, of class RemoteEvaluator, with a worker that
+     * accepts batches but never answers, whose batches must go to the other.
+     */
+    @Test
+    public void testEvaluate_Hung() throws IOException
+    {
+        System.out.println("evaluate hung");
+        File file = new File("data-iris.txt");
+        DataSet dataSet = new DataSet(file);
+        DataSet training = dataSet.getSubset(0, 90);
+        NeuralNetwork network = new NeuralNetwork(dataSet.getNumInputs(), 4, dataSet.getNumOutputs(), new Function.Sigmoid());
+
+        double[][] positions = new double[12][network.getNumWeights()];
+        for (int j = 0; j < positions.length; j++)
+        {
+            for (int i = 0; i < positions[j].length; i++)
+            {
+                positions[j][i] = Math.sin(i + 7*j);
+            }
+        }
+
+        final ServerSocket hung = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Socket socket = hung.accept();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    in.readInt();
+                    in.readInt();
+                    in.readInt();
+                    in.readInt();
+                    in.readUTF();
+                    in.readInt();
+                    for (int p = in.readInt(); p > 0; p--)
+                    {
+                        in.readInt();
+                    }
+                    out.writeInt(EvaluationWorker.OK);
+                    out.flush();
+                    // take batches, but never answer
+                    while (in.read() >= 0)
+                    {
+                    }
+                    socket.close();
+                }
+                catch (IOException e)
+                {
+                    // closed by the evaluator
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        Process worker = null;
+        RemoteEvaluator instance = null;
+        try
+        {
+            int[] port = new int[1];
+            worker = startWorker(file, port);
+            InetSocketAddress[] addresses = {
+                new InetSocketAddress("localhost", hung.getLocalPort()),
+                new InetSocketAddress("localhost", port[0])
+            };
+            instance = new RemoteEvaluator(addresses, 2);
+            instance.setTimeout(500);
+            instance.connect(network, training);
+
+            double[] results = new double[positions.length];
+            instance.evaluate(positions, results, 0, 90);
+            for (int j = 0; j < positions.length; j++)
+            {
+                network.setWeights(positions[j]);
+                assertEquals(network.run(training).getMeanSquaredError(), results[j], 0);
+            }
+        }
+        finally
+        {
+            if (instance != null)
+                instance.close();
+            if (worker != null)
+                worker.destroy();
+            hung.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class StoppingConditionTest
+{
+
+    /**
+     * Test of Stagnation, on a fitness that never improves.
+     */
+    @Test
+    public void testStagnation()
+    {
+        System.out.println("Stagnation");
+        PSO instance = new Flat(1000, 10);
+        StoppingCondition condition = new StoppingCondition.Stagnation(5, 0);
+        instance.setStoppingCondition(condition);
+        instance.optimise();
+        assertSame(condition, instance.getStoppedBy());
+        assertEquals(6, instance.getIterations());
+    }
+
+    /**
+     * Test of And and Or, reporting the condition that was met.
+     */
+    @Test
+    public void testCombinations()
+    {
+        System.out.println("And/Or");
+        PSO instance = new Flat(1000, 10);
+        StoppingCondition evaluations = new StoppingCondition.Evaluations(10*21);
+        StoppingCondition condition = new StoppingCondition.Or(
+                new StoppingCondition.Deadline(1000000),
+                evaluations);
+        instance.setStoppingCondition(condition);
+        instance.optimise();
+        assertSame(evaluations, instance.getStoppedBy());
+        assertEquals(20, instance.getIterations());
+
+        condition = new StoppingCondition.And(
+                new StoppingCondition.Fitness(1),
+                new StoppingCondition.Evaluations(10*31));
+        instance.setStoppingCondition(condition);
+        instance.optimise();
+        assertSame(condition, instance.getStoppedBy());
+        assertEquals(30, instance.getIterations());
+
+        instance.setStoppingCondition(new StoppingCondition.Fitness(0.5));
+        instance.optimise();
+        assertNull(instance.getStoppedBy());
+        assertEquals(1000, instance.getIterations());
+    }
+
+    /**
+     * Test of PSONN.Target.
+     */
+    @Test
+    public void testTarget() throws IOException
+    {
+        System.out.println("PSONN.Target");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        PSONN instance = new PSONN(dataSet, 100, 4, new Function.Sigmoid(), new Topology.Star(), 0.72, 1.4, 1.4, 1, 10, -1, 1);
+        instance.setStoppingCondition(new PSONN.Target(PSONN.Target.Measure.TESTING_MSE, 1));
+        instance.optimise();
+        assertEquals(1, instance.getIterations());
+        assertNotNull(instance.getStoppedBy());
+    }
+
+    /**
+     * Test of Stagnation and Fitness during an asynchronous run, which must
+     * see the swarm's best as it is found.
+     */
+    @Test
+    public void testAsynchronous()
+    {
+        System.out.println("Stagnation/Fitness asynchronous");
+        for (int threads = 1; threads <= 3; threads += 2)
+        {
+            PSO instance = new Flat(1000, 10);
+            instance.setAsynchronous(true);
+            instance.setNumThreads(threads);
+            StoppingCondition condition = new StoppingCondition.Stagnation(5, 0);
+            instance.setStoppingCondition(condition);
+            instance.optimise();
+            assertSame(condition, instance.getStoppedBy());
+            assertEquals(6, instance.getIterations());
+
+            instance = new Sphere(10000, 10);
+            instance.setAsynchronous(true);
+            instance.setNumThreads(threads);
+            condition = new StoppingCondition.Fitness(1e-4);
+            instance.setStoppingCondition(condition);
+            instance.optimise();
+            assertSame(condition, instance.getStoppedBy());
+            assertTrue(instance.getIterations() < 10000);
+            assertTrue(instance.getBestFitness() <= 1e-4);
+        }
+    }
+
+    /**
+     * Test of PSONN.Target during an asynchronous run.
+     */
+    @Test
+    public void testTargetAsynchronous() throws IOException
+    {
+        System.out.println("PSONN.Target asynchronous");
+        DataSet dataSet = new DataSet(new File("data-iris.txt"));
+        PSONN instance = new PSONN(dataSet, 100, 4, new Function.Sigmoid(), new Topology.Star(), 0.72, 1.4, 1.4, 1, 10, -1, 1);
+        instance.setAsynchronous(true);
+        instance.setNumThreads(3);
+        instance.setStoppingCondition(new PSONN.Target(PSONN.Target.Measure.TESTING_MSE, 1));
+        instance.optimise();
+        assertEquals(1, instance.getIterations());
+        assertNotNull(instance.getStoppedBy());
+
+        instance = new PSONN(dataSet, 1000, 4, new Function.Sigmoid(), new Topology.Star(), 0.72, 1.4, 1.4, 1, 20, -1, 1);
+        instance.setAsynchronous(true);
+        instance.setNumThreads(3);
+        instance.setStoppingCondition(new PSONN.Target(PSONN.Target.Measure.TRAINING_MSE, 0.21));
+        instance.optimise();
+        assertNotNull(instance.getStoppedBy());
+        assertTrue(instance.getIterations() < 1000);
+        assertTrue(instance.getBestFitness() <= 0.21);
+    }
+
+    // every position has the same fitness
+    private static class Flat extends PSO
+    {
+        public Flat(int maxIterations, int numParticles)
+        {
+            super(2, maxIterations, new Topology.Star(), 0.72, 1.4, 1.4, 1, numParticles, -1, 1);
+        }
+
+        @Override
+        protected double getFitness(double[] values)
+        {
+            return 1;
+        }
+
+        @Override
+        protected void outputStatistics(int i, double[] values)
+        {
+            // do nothing
+        }
+
+        @Override
+        protected void finalise(double[] values)
+        {
+            // do nothing
+        }
+    }
+
+    // the fitness is the squared distance from the origin
+    private static class Sphere extends Flat
+    {
+        public Sphere(int maxIterations, int numParticles)
+        {
+            super(maxIterations, numParticles);
+        }
+
+        @Override
+        protected double getFitness(double[] values)
+        {
+            return values[0]*values[0] + values[1]*values[1];
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class TopologyTest
+{
+
+    private static Particle[] createPopulation(double[] fitness)
+    {
+        Particle[] population = new Particle[fitness.length];
+        for (int i = 0; i < population.length; i++)
+        {
+            population[i] = new Particle(1, -1, 1);
+            population[i].updateFitness(fitness[i]);
+        }
+        return population;
+    }
+
+    /**
+     * Test of update method, of class Topology.Star.
+     */
+    @Test
+    public void testStarUpdate()
+    {
+        System.out.println("Star.update");
+        double[] fitness = {3, 1, 4, 1, 5, 9, 2, 6};
+        Particle[] population = createPopulation(fitness);
+        Topology instance = new Topology.Star();
+        instance.setPopulation(population);
+
+        // without reports
+        instance.update();
+        assertSame(population[1].getValues(), instance.getBest(5));
+
+        population[6].updateFitness(0.5);
+        for (int i = 0; i < population.length; i++)
+        {
+            instance.report(i);
+        }
+        instance.update();
+        assertSame(population[6].getValues(), instance.getBest(0));
+    }
+
+    /**
+     * Test of update method, of class Topology.Ring, against a direct search
+     * of each neighbourhood.
+     */
+    @Test
+    public void testRingUpdate()
+    {
+        System.out.println("Ring.update");
+        double[] fitness = {5, 3, 8, 8, 1, 7, 2, 9, 4, 6, 0.5, 7};
+        Particle[] population = createPopulation(fitness);
+        int n = population.length;
+
+        for (int k = 0; k <= n; k++)
+        {
+            Topology instance = new Topology.Ring(k);
+            instance.setPopulation(population);
+            instance.update();
+            for (int i = 0; i < n; i++)
+            {
+                double expected = fitness[i];
+                for (int j = 1; j <= k; j++)
+                {
+                    expected = Math.min(expected, fitness[((i - j) % n + n) % n]);
+                    expected = Math.min(expected, fitness[(i + j) % n]);
+                }
+
+                double[] best = instance.getBest(i);
+                int actual = -1;
+                for (int j = 0; j < n; j++)
+                {
+                    if (population[j].getValues() == best)
+                        actual = j;
+                }
+                assertEquals("k=" + k + " i=" + i, expected, fitness[actual], 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Daniel
+ */
+public class TrainingLogTest
+{
+
+    /**
+     * Test of log and close, writing each format.
+     */
+    @Test
+    public void testFormats() throws IOException
+    {
+        System.out.println("formats");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TrainingLog instance = new TrainingLog(out, TrainingLog.Format.RESULTS);
+        instance.log(1, 0.5, 0.25, 0.125, 1);
+        instance.close();
+        assertEquals("1\t0.500000\t25.0%\t0.125000\t100.0%\n", out.toString());
+
+        out = new ByteArrayOutputStream();
+        instance = new TrainingLog(out, TrainingLog.Format.CSV);
+        instance.log(2, 0.5, 0.25, 0.125, 1);
+        instance.close();
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("iteration,time,training_mse,training_accuracy,testing_mse,testing_accuracy", lines[0]);
+        String[] fields = lines[1].split(",");
+        assertEquals("2", fields[0]);
+        assertTrue(Long.parseLong(fields[1]) >= 0);
+        assertEquals("0.5", fields[2]);
+        assertEquals("0.25", fields[3]);
+        assertEquals("0.125", fields[4]);
+        assertEquals("1.0", fields[5]);
+    }
+
+    /**
+     * Test of the ring buffer, logging many times its capacity so that it
+     * wraps around while the consumer is writing.
+     */
+    @Test
+    public void testWrapAround() throws IOException
+    {
+        System.out.println("wrap around");
+        for (int capacity = 1; capacity <= 5; capacity += 2)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TrainingLog instance = new TrainingLog(out, TrainingLog.Format.BINARY, capacity);
+            int n = 10000;
+            for (int i = 1; i <= n; i++)
+            {
+                instance.log(i, i*0.5, i*0.25, -i, 1.0/i);
+            }
+            instance.close();
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(n*(4 + 8 + 4*8), out.size());
+            long time = 0;
+            for (int i = 1; i <= n; i++)
+            {
+                assertEquals(i, in.readInt());
+                long next = in.readLong();
+                assertTrue(next >= time);
+                time = next;
+                assertEquals(i*0.5, in.readDouble(), 0);
+                assertEquals(i*0.25, in.readDouble(), 0);
+                assertEquals(-i, in.readDouble(), 0);
+                assertEquals(1.0/i, in.readDouble(), 0);
+            }
+        }
+    }
+
+    /**
+     * Test that records reach the output within a few seconds without the
+     * log being closed, and that close writes everything before returning.
+     */
+    @Test
+    public void testFlush() throws IOException, InterruptedException
+    {
+        System.out.println("flush");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TrainingLog instance = new TrainingLog(out, TrainingLog.Format.RESULTS);
+        instance.log(1, 0.5, 0.25, 0.125, 1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (out.size() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("1\t0.500000\t25.0%\t0.125000\t100.0%\n", out.toString());
+
+        for (int i = 2; i <= 1000; i++)
+        {
+            instance.log(i, 0.5, 0.25, 0.125, 1);
+        }
+        instance.close();
+        String[] lines = out.toString().split("\n");
+        assertEquals(1000, lines.length);
+        assertTrue(lines[999].startsWith("1000\t"));
+
+        // closing again does nothing, but logging is refused
+        instance.close();
+        try
+        {
+            instance.log(1001, 0.5, 0.25, 0.125, 1);
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        assertEquals(1000, out.toString().split("\n").length);
+    }
+
+    /**
+     * Test of the consumer thread, which must not keep the JVM running and
+     * must end when the log is closed.
+     */
+    @Test
+    public void testConsumer() throws IOException
+    {
+        System.out.println("consumer");
+        Set<Thread> before = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+        TrainingLog instance = new TrainingLog(new ByteArrayOutputStream(), TrainingLog.Format.CSV);
+        Thread consumer = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (!before.contains(thread) && thread.getName().equals("TrainingLog"))
+                consumer = thread;
+        }
+        assertNotNull(consumer);
+        assertTrue(consumer.isDaemon());
+        assertTrue(consumer.isAlive());
+        instance.log(1, 0.5, 0.25, 0.125, 1);
+        instance.close();
+        assertFalse(consumer.isAlive());
+    }
+
+    /**
+     * Test of a failing output, which must not leave the optimiser waiting
+     * on a full buffer and must be reported by close.
+     */
+    @Test
+    public void testError() throws InterruptedException
+    {
+        System.out.println("error");
+        final int[] attempts = new int[1];
+        OutputStream out = new OutputStream()
+        {
+            @Override
+            public synchronized void write(int b) throws IOException
+            {
+                attempts[0]++;
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException
+            {
+                write(0);
+            }
+        };
+        TrainingLog instance = new TrainingLog(out, TrainingLog.Format.BINARY, 1);
+        instance.log(1, 0.5, 0.25, 0.125, 1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline)
+        {
+            synchronized (out)
+            {
+                if (attempts[0] > 0)
+                    break;
+            }
+            Thread.sleep(10);
+        }
+
+        for (int i = 2; i <= 1000; i++)
+        {
+            instance.log(i, 0.5, 0.25, 0.125, 1);
+        }
+        try
+        {
+            instance.close();
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertEquals("Disk full", e.getMessage());
+        }
+    }
+}